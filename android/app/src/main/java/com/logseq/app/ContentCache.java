@@ -0,0 +1,113 @@
+package com.logseq.app;
+
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// In-memory contents of recently prefetched files, bounded by their
+// total size and dropped least recently used first. An entry is only
+// valid while the size and the last modified time of the document are
+// the ones it was read with.
+public class ContentCache {
+    static private class Entry {
+        final byte[] data;
+        final long size;
+        final long lastModified;
+
+        Entry(byte[] data, long size, long lastModified) {
+            this.data = data;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final long mMaxBytes;
+    // Bigger files aren't cached, so one can't flush the others.
+    private final long mMaxEntryBytes;
+    private long mBytes = 0;
+    // Keyed by fake path, in access order.
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<>(64, 0.75f, true);
+
+    public ContentCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+        mMaxEntryBytes = maxBytes / 4;
+    }
+
+    // Returns the content, or null if unknown or stale.
+    @Nullable
+    public synchronized byte[] get(String fakePath, long size,
+                                   long lastModified) {
+        Entry entry = mEntries.get(fakePath);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.size != size || entry.lastModified != lastModified) {
+            remove(fakePath);
+            return null;
+        }
+        return entry.data;
+    }
+
+    public synchronized boolean contains(String fakePath) {
+        return mEntries.containsKey(fakePath);
+    }
+
+    // readFile serves an entry instead of the document whenever the stat
+    // matches, so a document without a last modified time would keep
+    // returning its prefetched content after an edit that keeps its
+    // size, e.g. by a sync app. Those are always read instead.
+    public synchronized void put(String fakePath, byte[] data, long size,
+                                 long lastModified) {
+        if (lastModified <= 0 || data.length > mMaxEntryBytes) {
+            return;
+        }
+        remove(fakePath);
+        mEntries.put(fakePath, new Entry(data, size, lastModified));
+        mBytes += data.length;
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized void invalidate(String fakePath) {
+        remove(fakePath);
+    }
+
+    // Drops the file and everything under it if it's a folder.
+    public synchronized void invalidateTree(String fakePath) {
+        String prefix = fakePath.replaceAll("/+$", "") + "/";
+        Iterator<Map.Entry<String, Entry>> iterator =
+                mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getKey().equals(fakePath)
+                    || entry.getKey().startsWith(prefix)) {
+                mBytes -= entry.getValue().data.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    // Drops the least recently used entries until at most `maxBytes`
+    // are cached.
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            mBytes -= iterator.next().data.length;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    private void remove(String fakePath) {
+        Entry entry = mEntries.remove(fakePath);
+        if (entry != null) {
+            mBytes -= entry.data.length;
+        }
+    }
+}
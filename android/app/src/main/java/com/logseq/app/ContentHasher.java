@@ -0,0 +1,37 @@
+package com.logseq.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+// Computes cheap digests of file contents, so that changed files can
+// be told apart without transferring their contents. The content is
+// streamed through a large reusable buffer instead of being loaded
+// into memory.
+public class ContentHasher {
+    static private final int BUFFER_SIZE = 64 * 1024;
+
+    static private final ThreadLocal<byte[]> sBuffer =
+            new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[BUFFER_SIZE];
+                }
+            };
+
+    // Returns the CRC32 of the remaining content of the stream. The
+    // stream is not closed.
+    static public long crc32(InputStream is) throws IOException {
+        byte[] buffer = sBuffer.get();
+        CRC32 crc = new CRC32();
+        int length;
+        while ((length = is.read(buffer)) != -1) {
+            crc.update(buffer, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    static public String toHex(long crc) {
+        return String.format("%08x", crc);
+    }
+}
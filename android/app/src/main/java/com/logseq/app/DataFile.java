@@ -0,0 +1,102 @@
+package com.logseq.app;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// A small binary file of state kept across app restarts, e.g. the
+// watcher snapshots and the SAF caches. It starts with a magic number
+// and a version, and a file of another version is ignored. Writes go
+// to a temporary sibling which is synced then renamed over the file, so
+// neither a crash nor a power loss leaves a truncated one.
+class DataFile {
+    static private final String TAG = "Logseq/DataFile";
+
+    interface Reader {
+        // Returns false if the content doesn't apply, e.g. it belongs
+        // to another graph.
+        boolean read(DataInputStream in) throws IOException;
+    }
+
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final File mFile;
+    private final int mMagic;
+    private final int mVersion;
+
+    DataFile(File file, int magic, int version) {
+        mFile = file;
+        mMagic = magic;
+        mVersion = version;
+    }
+
+    // Returns false if the file is missing, of another version, doesn't
+    // apply or can't be read. What the reader got until then should be
+    // discarded.
+    boolean read(Reader reader) {
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            return in.readInt() == mMagic && in.readInt() == mVersion &&
+                    reader.read(in);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to read " + mFile + ": " + e);
+            return false;
+        }
+    }
+
+    // Returns whether the file is written.
+    boolean write(Writer writer) {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        mFile.getParentFile().mkdirs();
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(fileOut));
+            out.writeInt(mMagic);
+            out.writeInt(mVersion);
+            writer.write(out);
+            out.flush();
+            // Else the rename may reach the storage before the data.
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write " + mFile + ": " + e);
+            tmpFile.delete();
+            return false;
+        }
+        if (!tmpFile.renameTo(mFile)) {
+            Log.e(TAG, "unable to rename " + tmpFile + " to " + mFile);
+            tmpFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    // A file name for the state of the given key, e.g. a graph path.
+    static String nameOf(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.logseq.app;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Content digests of documents, valid as long as the size and the last
+// modified time of the document don't change. The table is persisted
+// in a small file, so documents unchanged across app restarts are
+// never read again to be hashed.
+public class DigestCache {
+    static public final long NO_DIGEST = -1;
+
+    static private final int MAGIC = 0x4c534443; // "LSDC"
+    static private final int VERSION = 1;
+    // Least recently used entries are dropped beyond this.
+    static private final int MAX_ENTRIES = 50000;
+
+    static private class Entry {
+        final long size;
+        final long lastModified;
+        final long digest;
+
+        Entry(long size, long lastModified, long digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    private final DataFile mFile;
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private boolean mLoaded = false;
+    private boolean mDirty = false;
+
+    public DigestCache(File file) {
+        mFile = new DataFile(file, MAGIC, VERSION);
+    }
+
+    // Documents are keyed by the provider authority and document id.
+    static public String key(String authority, String documentId) {
+        return authority + "/" + documentId;
+    }
+
+    // Returns the digest, or NO_DIGEST if unknown or stale.
+    public synchronized long get(String key, long size, long lastModified) {
+        load();
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.size != size ||
+                entry.lastModified != lastModified) {
+            return NO_DIGEST;
+        }
+        return entry.digest;
+    }
+
+    // Documents without a last modified time can't be validated, so
+    // they aren't cached.
+    public synchronized void put(String key, long size, long lastModified,
+                                 long digest) {
+        if (lastModified <= 0) {
+            return;
+        }
+        load();
+        mEntries.put(key, new Entry(size, lastModified, digest));
+        mDirty = true;
+    }
+
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+
+        // From the least recently used, so the order survives.
+        if (mFile.write(out -> {
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+                out.writeLong(entry.getValue().digest);
+            }
+        })) {
+            mDirty = false;
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mFile.read(in -> {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                mEntries.put(in.readUTF(), new Entry(in.readLong(),
+                        in.readLong(), in.readLong()));
+            }
+            return true;
+        })) {
+            mEntries.clear();
+        }
+    }
+}
@@ -10,6 +10,10 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // In order to keep the frontend code untouched, the FakePathFactory
 // provides conversion methods between SAF URIs and faked classic
@@ -19,6 +23,67 @@ public class FakePathFactory {
 
     static private final String TAG = "Logseq/FakePathFactory";
 
+    // Upper bound of the number of resolved fake paths kept in memory.
+    static private final int URI_CACHE_CAPACITY = 2048;
+
+    // Caches the resolved document uri of fake paths, so that resolving
+    // the same path again doesn't need any interaction with the
+    // DocumentProvider. The least recently used entry is dropped when
+    // the cache is full. Guarded by itself.
+    static private final LinkedHashMap<String, Uri> sUriCache =
+            new LinkedHashMap<String, Uri>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Uri> eldest) {
+                    return size() > URI_CACHE_CAPACITY;
+                }
+            };
+
+    // Upper bound of the number of directories whose children are
+    // indexed in memory.
+    static private final int CHILD_INDEX_CAPACITY = 32;
+
+    // A lookup missing in an index older than this checks whether the
+    // directory changed behind our back, and if so lists it again.
+    static private final long CHILD_INDEX_MISS_REFRESH_MS = 1000;
+
+    // Maps the fake path of a directory to the index of its children,
+    // so that looking up a child by name doesn't need to walk the whole
+    // child cursor. Guarded by itself.
+    static private final LinkedHashMap<String, ChildIndex> sChildIndexes =
+            new LinkedHashMap<String, ChildIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, ChildIndex> eldest) {
+                    return size() > CHILD_INDEX_CAPACITY;
+                }
+            };
+
+    // A miss is trusted while the last modified time of the directory
+    // is the one the index was checked against. The changes made by the
+    // plugin itself are applied to the index, which then adopts the
+    // directory's new time at the next miss instead of listing it again,
+    // so a change by another app in between is only noticed with the
+    // next one. Directories without a last modified time are listed
+    // again.
+    static private class ChildIndex {
+        // Display name -> document id.
+        final HashMap<String, String> documentIds;
+        long builtAt;
+        // The directory's last modified time, 0 if unknown.
+        long lastModified;
+        // Changed by the plugin since `lastModified` was queried.
+        boolean changed = false;
+        // Found stale, the next miss lists the directory again.
+        boolean outdated = false;
+
+        ChildIndex(HashMap<String, String> documentIds, long lastModified) {
+            this.documentIds = documentIds;
+            this.lastModified = lastModified;
+            this.builtAt = System.currentTimeMillis();
+        }
+    }
+
     static public String buildRootFakePath(Uri uri,
                                            ContentResolver contentResolver) {
         // Use the folder name as the suffix of faked root path to
@@ -91,28 +156,196 @@ public class FakePathFactory {
         }
 
         String[] components = str.split("/");
-        Uri parentUri = buildRootUri(components);
-        if (parentUri == null) {
+        Uri rootUri = buildRootUri(components);
+        if (rootUri == null) {
             return null;
         }
 
-        for (int componentIdx = COUNT_FAKE_PATH_PREFIX_SEGMENT;
-             componentIdx < components.length; componentIdx++) {
+        // Resume the resolution from the deepest ancestor which has
+        // been resolved before.
+        String[] prefixes = buildPrefixPaths(components);
+        int componentIdx = components.length;
+        Uri parentUri = null;
+        synchronized (sUriCache) {
+            while (componentIdx > COUNT_FAKE_PATH_PREFIX_SEGMENT) {
+                parentUri = sUriCache.get(prefixes[componentIdx - 1]);
+                if (parentUri != null) {
+                    break;
+                }
+                componentIdx--;
+            }
+        }
+        if (parentUri == null) {
+            parentUri = rootUri;
+        }
+
+        for (; componentIdx < components.length; componentIdx++) {
             Log.d(TAG, "check child " + components[componentIdx]);
             Log.d(TAG, "parent uri=" + parentUri);
-            Uri child = queryChildUri(parentUri, components[componentIdx],
-                    contentResolver);
+            Uri child = queryChildUri(prefixes[componentIdx - 1], parentUri,
+                    components[componentIdx], contentResolver);
             if (child == null) {
                 Log.d(TAG, "child " + components[componentIdx] +
                         " not exists");
                 return null;
             }
+            cacheUri(prefixes[componentIdx], child);
             parentUri = child;
         }
 
         return parentUri;
     }
 
+    // Returns the cached document uri of the given fake path, or null
+    // if the path hasn't been resolved yet.
+    @Nullable
+    static public Uri getCachedUri(String fakePath) {
+        synchronized (sUriCache) {
+            return sUriCache.get(normalizeFakePath(fakePath));
+        }
+    }
+
+    static public void cacheUri(String fakePath, Uri uri) {
+        cacheUri(fakePath, uri, false);
+    }
+
+    // Caches the document just created at the given path by the plugin.
+    static public void addChild(String fakePath, Uri uri) {
+        cacheUri(fakePath, uri, true);
+    }
+
+    static private void cacheUri(String fakePath, Uri uri, boolean created) {
+        if (uri == null) {
+            return;
+        }
+        String path = normalizeFakePath(fakePath);
+        synchronized (sUriCache) {
+            sUriCache.put(path, uri);
+        }
+
+        // Keep the index of the parent directory up to date.
+        int separatorIdx = path.lastIndexOf('/');
+        synchronized (sChildIndexes) {
+            ChildIndex index =
+                    sChildIndexes.get(path.substring(0, separatorIdx));
+            if (index != null) {
+                index.documentIds.put(path.substring(separatorIdx + 1),
+                        DocumentsContract.getDocumentId(uri));
+                index.changed |= created;
+            }
+        }
+    }
+
+    // Evicts the given fake path and all paths under it from the
+    // cache. Should be called once the document is found to be stale.
+    // The index of the parent directory is marked as outdated, so a
+    // following miss of the path lists the parent again instead of
+    // trusting the index.
+    static public void invalidateCache(String fakePath) {
+        evict(fakePath, true);
+    }
+
+    // Evicts the given fake path and all paths under it from the cache
+    // after the plugin deleted or moved the document. The index of the
+    // parent directory stays trusted.
+    static public void removeChild(String fakePath) {
+        evict(fakePath, false);
+    }
+
+    static private void evict(String fakePath, boolean outdated) {
+        String path = normalizeFakePath(fakePath);
+        String descendantPrefix = path + "/";
+        synchronized (sUriCache) {
+            Iterator<String> it = sUriCache.keySet().iterator();
+            while (it.hasNext()) {
+                String key = it.next();
+                if (key.equals(path) || key.startsWith(descendantPrefix)) {
+                    it.remove();
+                }
+            }
+        }
+
+        int separatorIdx = path.lastIndexOf('/');
+        synchronized (sChildIndexes) {
+            Iterator<Map.Entry<String, ChildIndex>> it =
+                    sChildIndexes.entrySet().iterator();
+            while (it.hasNext()) {
+                String key = it.next().getKey();
+                if (key.equals(path) || key.startsWith(descendantPrefix)) {
+                    it.remove();
+                }
+            }
+            ChildIndex parentIndex =
+                    sChildIndexes.get(path.substring(0, separatorIdx));
+            if (parentIndex != null) {
+                parentIndex.documentIds.remove(
+                        path.substring(separatorIdx + 1));
+                if (outdated) {
+                    parentIndex.outdated = true;
+                } else {
+                    parentIndex.changed = true;
+                }
+            }
+        }
+    }
+
+    // Updates the cache after the document at `from` is moved to `to`,
+    // holding both locks so that readers never observe a half updated
+    // cache.
+    static public void moveCache(String from, String to, Uri newUri) {
+        synchronized (sUriCache) {
+            synchronized (sChildIndexes) {
+                removeChild(from);
+                removeChild(to);
+                addChild(to, newUri);
+            }
+        }
+    }
+
+    static public void clearCache() {
+        synchronized (sUriCache) {
+            sUriCache.clear();
+        }
+        synchronized (sChildIndexes) {
+            sChildIndexes.clear();
+        }
+    }
+
+    // Builds the fake path of every ancestor, e.g. `prefixes[i]` is the
+    // path consisting of `components[0]` to `components[i]`. Only the
+    // entries from the root path on are filled.
+    static private String[] buildPrefixPaths(String[] components) {
+        String[] prefixes = new String[components.length];
+        StringBuilder builder = new StringBuilder(components[0]);
+        for (int idx = 1; idx < components.length; idx++) {
+            builder.append('/').append(components[idx]);
+            if (idx >= COUNT_FAKE_PATH_PREFIX_SEGMENT - 1) {
+                prefixes[idx] = builder.toString();
+            }
+        }
+        return prefixes;
+    }
+
+    static private String normalizeFakePath(String fakePath) {
+        int end = fakePath.length();
+        while (end > 0 && fakePath.charAt(end - 1) == '/') {
+            end--;
+        }
+        return fakePath.substring(0, end);
+    }
+
+    // Returns the fake path of the tree root which the given path belongs
+    // to, e.g. the path returned by `buildRootFakePath`.
+    @Nullable
+    static public String getFakePathRoot(String str) {
+        String[] components = str.split("/");
+        if (components.length < COUNT_FAKE_PATH_PREFIX_SEGMENT) {
+            return null;
+        }
+        return buildPrefixPaths(components)[
+                COUNT_FAKE_PATH_PREFIX_SEGMENT - 1];
+    }
+
     static public String[] getFakePathAdditionalPathSegments(String str) {
         String[] components = str.split("/");
         if (components.length <= COUNT_FAKE_PATH_PREFIX_SEGMENT) {
@@ -123,12 +356,73 @@ public class FakePathFactory {
                 components.length);
     }
 
-    // TODO: Maybe we should cache the query result to
-    // reduce interactions with the DocumentProvider.
     @Nullable
-    static public Uri queryChildUri(Uri parentUri,
+    static public Uri queryChildUri(String parentFakePath,
+                                    Uri parentUri,
                                     String targetChildName,
                                     ContentResolver contentResolver) {
+        String parentPath = normalizeFakePath(parentFakePath);
+        ChildIndex index;
+        synchronized (sChildIndexes) {
+            index = sChildIndexes.get(parentPath);
+            if (index != null) {
+                String documentId = index.documentIds.get(targetChildName);
+                if (documentId != null) {
+                    return DocumentsContract.buildDocumentUriUsingTree(
+                            parentUri, documentId);
+                }
+                if (index.outdated) {
+                    index = null;
+                } else if (System.currentTimeMillis() - index.builtAt <
+                        CHILD_INDEX_MISS_REFRESH_MS) {
+                    return null;
+                }
+            }
+        }
+
+        // Queried before listing, so a change during the listing leaves
+        // an outdated time and the next miss lists again.
+        long lastModified = queryLastModified(parentUri, contentResolver);
+        if (index != null && lastModified > 0) {
+            synchronized (sChildIndexes) {
+                if (sChildIndexes.get(parentPath) == index &&
+                        !index.outdated && (index.changed ||
+                        index.lastModified == lastModified)) {
+                    index.lastModified = lastModified;
+                    index.changed = false;
+                    index.builtAt = System.currentTimeMillis();
+                    return null;
+                }
+            }
+        }
+
+        HashMap<String, String> documentIds =
+                queryChildDocumentIds(parentUri, contentResolver);
+        if (documentIds == null) {
+            return null;
+        }
+        synchronized (sChildIndexes) {
+            sChildIndexes.put(parentPath,
+                    new ChildIndex(documentIds, lastModified));
+        }
+        String documentId = documentIds.get(targetChildName);
+        return documentId == null ? null :
+                DocumentsContract.buildDocumentUriUsingTree(parentUri,
+                        documentId);
+    }
+
+    // Returns 0 if unknown.
+    static private long queryLastModified(Uri uri,
+                                          ContentResolver contentResolver) {
+        SafUtil.DocumentStat stat =
+                SafUtil.queryDocumentStat(uri, contentResolver);
+        return stat == null ? 0 : stat.lastModified;
+    }
+
+    // Lists the children of the directory with a single query.
+    @Nullable
+    static private HashMap<String, String> queryChildDocumentIds(
+            Uri parentUri, ContentResolver contentResolver) {
         Uri folderUri =
                 DocumentsContract.buildChildDocumentsUriUsingTree(parentUri,
                         DocumentsContract.getDocumentId(parentUri));
@@ -137,27 +431,25 @@ public class FakePathFactory {
                         DocumentsContract.Document.COLUMN_DOCUMENT_ID,
                         DocumentsContract.Document.COLUMN_DISPLAY_NAME}, null,
                 null, null)) {
-            if (cursor == null || !cursor.moveToFirst()) {
+            if (cursor == null) {
                 return null;
             }
 
-            do {
-                if (SafUtil.getFileName(cursor).equals(targetChildName)) {
-                    return buildFileUri(cursor, folderUri);
-                }
-            } while (cursor.moveToNext());
+            HashMap<String, String> documentIds =
+                    new HashMap<>(Math.max(16, cursor.getCount() * 2));
+            int idColumn = cursor.getColumnIndexOrThrow(
+                    DocumentsContract.Document.COLUMN_DOCUMENT_ID);
+            while (cursor.moveToNext()) {
+                documentIds.put(SafUtil.getFileName(cursor),
+                        cursor.getString(idColumn));
+            }
+            return documentIds;
         } catch (Exception e) {
             Log.e(TAG, "Unable to list directory, exception:" + e);
         }
         return null;
     }
 
-    static private Uri buildFileUri(Cursor cursor, Uri treeUri) {
-        return DocumentsContract.buildDocumentUriUsingTree(treeUri,
-                cursor.getString(cursor.getColumnIndexOrThrow(
-                        DocumentsContract.Document.COLUMN_DOCUMENT_ID)));
-    }
-
     static public Boolean isSiblingPath(String path1, String path2) {
         String[] segments1 = path1.split("/");
         String[] segments2 = path2.split("/");
@@ -165,7 +457,7 @@ public class FakePathFactory {
             return false;
         }
         for (int idx = 0; idx < segments1.length - 1; idx++) {
-            if (segments1[idx].equals(segments2[idx])) {
+            if (!segments1[idx].equals(segments2[idx])) {
                 return false;
             }
         }
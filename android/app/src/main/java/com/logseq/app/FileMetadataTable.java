@@ -0,0 +1,302 @@
+package com.logseq.app;
+
+import java.util.Arrays;
+
+// Metadata of the files of a watched graph. Rows are kept in parallel
+// primitive arrays and found by path through an open-addressing index,
+// so that diffing a scan against the table updates it in place and
+// allocates nothing for files that didn't change.
+//
+// Not thread safe, FsWatcher guards it with the watcher's lock.
+class FileMetadataTable {
+    // CRC32 is unsigned 32 bits, so it's never negative.
+    static final long NO_DIGEST = -1;
+
+    static private final int INITIAL_CAPACITY = 256;
+
+    // Row columns. A null path marks a free row.
+    private String[] mPaths;
+    private long[] mMtimes;
+    private long[] mCtimes;
+    private long[] mSizes;
+    private long[] mInos;
+    private long[] mDigests;
+    // Generation in which the row was last seen, see nextGeneration().
+    private int[] mSeen;
+    private int mRowCount = 0;
+    private int[] mFreeRows;
+    private int mFreeCount = 0;
+    private int mGeneration = 0;
+
+    // Linear probing index of row + 1, 0 for an empty bucket. The
+    // length is a power of two.
+    private int[] mBuckets;
+
+    FileMetadataTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    FileMetadataTable(int capacity) {
+        capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        mPaths = new String[capacity];
+        mMtimes = new long[capacity];
+        mCtimes = new long[capacity];
+        mSizes = new long[capacity];
+        mInos = new long[capacity];
+        mDigests = new long[capacity];
+        mSeen = new int[capacity];
+        mFreeRows = new int[16];
+        mBuckets = new int[capacity * 2];
+    }
+
+    int size() {
+        return mRowCount - mFreeCount;
+    }
+
+    // Rows are in [0, getRowLimit()), skip those without a path.
+    int getRowLimit() {
+        return mRowCount;
+    }
+
+    // Returns the row of the path, or -1.
+    int find(String path) {
+        int mask = mBuckets.length - 1;
+        for (int i = hash(path) & mask; ; i = (i + 1) & mask) {
+            int row = mBuckets[i] - 1;
+            if (row < 0) {
+                return -1;
+            }
+            if (mPaths[row].equals(path)) {
+                return row;
+            }
+        }
+    }
+
+    // Adds a row for a path which isn't in the table yet.
+    int insert(String path, long mtime, long ctime, long size, long ino, long digest) {
+        int row;
+        if (mFreeCount > 0) {
+            row = mFreeRows[--mFreeCount];
+        } else {
+            if (mRowCount == mPaths.length) {
+                growRows();
+            }
+            row = mRowCount++;
+        }
+        mPaths[row] = path;
+        set(row, mtime, ctime, size, ino, digest);
+        mSeen[row] = mGeneration;
+
+        // Keep the load factor of the index under 1/2.
+        if (size() * 2 > mBuckets.length) {
+            rehash(mBuckets.length * 2);
+        } else {
+            int mask = mBuckets.length - 1;
+            int i = hash(path) & mask;
+            while (mBuckets[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            mBuckets[i] = row + 1;
+        }
+        return row;
+    }
+
+    void remove(int row) {
+        int mask = mBuckets.length - 1;
+        int i = hash(mPaths[row]) & mask;
+        while (mBuckets[i] != row + 1) {
+            i = (i + 1) & mask;
+        }
+        // Shift the following entries of the probe sequence back, so
+        // lookups don't need tombstones.
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (mBuckets[j] == 0) {
+                break;
+            }
+            int home = hash(mPaths[mBuckets[j] - 1]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                mBuckets[i] = mBuckets[j];
+                i = j;
+            }
+        }
+        mBuckets[i] = 0;
+
+        mPaths[row] = null;
+        if (mFreeCount == mFreeRows.length) {
+            mFreeRows = Arrays.copyOf(mFreeRows, mFreeCount * 2);
+        }
+        mFreeRows[mFreeCount++] = row;
+    }
+
+    void clear() {
+        Arrays.fill(mPaths, 0, mRowCount, null);
+        Arrays.fill(mBuckets, 0);
+        mRowCount = 0;
+        mFreeCount = 0;
+    }
+
+    void set(int row, long mtime, long ctime, long size, long ino, long digest) {
+        mMtimes[row] = mtime;
+        mCtimes[row] = ctime;
+        mSizes[row] = size;
+        mInos[row] = ino;
+        mDigests[row] = digest;
+    }
+
+    // Whether the stat of the row is the same, the digest is ignored.
+    boolean matches(int row, long mtime, long ctime, long size, long ino) {
+        return mMtimes[row] == mtime && mCtimes[row] == ctime && mSizes[row] == size && mInos[row] == ino;
+    }
+
+    String getPath(int row) {
+        return mPaths[row];
+    }
+
+    long getMtime(int row) {
+        return mMtimes[row];
+    }
+
+    long getCtime(int row) {
+        return mCtimes[row];
+    }
+
+    long getSize(int row) {
+        return mSizes[row];
+    }
+
+    long getIno(int row) {
+        return mInos[row];
+    }
+
+    long getDigest(int row) {
+        return mDigests[row];
+    }
+
+    // Starts a new generation of marks. Rows not marked in it after a
+    // scan are the deleted files.
+    int nextGeneration() {
+        return ++mGeneration;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    void mark(int row, int generation) {
+        mSeen[row] = generation;
+    }
+
+    boolean isMarked(int row, int generation) {
+        return mSeen[row] == generation;
+    }
+
+    private void growRows() {
+        int capacity = mPaths.length * 2;
+        mPaths = Arrays.copyOf(mPaths, capacity);
+        mMtimes = Arrays.copyOf(mMtimes, capacity);
+        mCtimes = Arrays.copyOf(mCtimes, capacity);
+        mSizes = Arrays.copyOf(mSizes, capacity);
+        mInos = Arrays.copyOf(mInos, capacity);
+        mDigests = Arrays.copyOf(mDigests, capacity);
+        mSeen = Arrays.copyOf(mSeen, capacity);
+    }
+
+    private void rehash(int bucketCount) {
+        mBuckets = new int[bucketCount];
+        int mask = bucketCount - 1;
+        for (int row = 0; row < mRowCount; row++) {
+            if (mPaths[row] == null) {
+                continue;
+            }
+            int i = hash(mPaths[row]) & mask;
+            while (mBuckets[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            mBuckets[i] = row + 1;
+        }
+    }
+
+    // Spreads the high bits, String.hashCode() is weak in the low bits
+    // for paths sharing a long prefix.
+    static private int hash(String path) {
+        int h = path.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // Stats collected by a scan, appended to reusable arrays so that a
+    // steady-state scan doesn't allocate a map of its results.
+    static class ScanBuffer {
+        private String[] mPaths = new String[INITIAL_CAPACITY];
+        private long[] mStats = new long[INITIAL_CAPACITY * 4];
+        private int mCount = 0;
+        // The thread filling the buffer, for per-worker buffers.
+        final Thread owner;
+
+        ScanBuffer() {
+            this(null);
+        }
+
+        ScanBuffer(Thread owner) {
+            this.owner = owner;
+        }
+
+        int size() {
+            return mCount;
+        }
+
+        void add(String path, long mtime, long ctime, long size, long ino) {
+            if (mCount == mPaths.length) {
+                grow(mCount * 2);
+            }
+            mPaths[mCount] = path;
+            int i = mCount * 4;
+            mStats[i] = mtime;
+            mStats[i + 1] = ctime;
+            mStats[i + 2] = size;
+            mStats[i + 3] = ino;
+            mCount++;
+        }
+
+        void addAll(ScanBuffer other) {
+            if (mCount + other.mCount > mPaths.length) {
+                grow(Math.max(mCount + other.mCount, mPaths.length * 2));
+            }
+            System.arraycopy(other.mPaths, 0, mPaths, mCount, other.mCount);
+            System.arraycopy(other.mStats, 0, mStats, mCount * 4, other.mCount * 4);
+            mCount += other.mCount;
+        }
+
+        // Drops the paths so they can be collected, the arrays are kept.
+        void clear() {
+            Arrays.fill(mPaths, 0, mCount, null);
+            mCount = 0;
+        }
+
+        String getPath(int i) {
+            return mPaths[i];
+        }
+
+        long getMtime(int i) {
+            return mStats[i * 4];
+        }
+
+        long getCtime(int i) {
+            return mStats[i * 4 + 1];
+        }
+
+        long getSize(int i) {
+            return mStats[i * 4 + 2];
+        }
+
+        long getIno(int i) {
+            return mStats[i * 4 + 3];
+        }
+
+        private void grow(int capacity) {
+            mPaths = Arrays.copyOf(mPaths, capacity);
+            mStats = Arrays.copyOf(mStats, capacity * 4);
+        }
+    }
+}
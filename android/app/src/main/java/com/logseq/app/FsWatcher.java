@@ -1,24 +1,48 @@
 package com.logseq.app;
 
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.DocumentsContract;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
 import android.system.StructStat;
 import android.util.Log;
 import android.os.FileObserver;
+import android.os.SystemClock;
 
 import android.net.Uri;
 
 import java.io.*;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
-import java.util.regex.Pattern;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import java.io.File;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.annotation.CapacitorPlugin;
@@ -27,88 +51,305 @@ import com.getcapacitor.PluginCall;
 
 @CapacitorPlugin(name = "FsWatcher")
 public class FsWatcher extends Plugin {
-    private String mPath;
-    private PollingFsWatcher mWatcher;
-    private Thread mThread;
+    // Background graphs are scanned this many times less often than
+    // the foreground one.
+    private static final int BACKGROUND_SCAN_INTERVAL_FACTOR = 8;
+    // Number of graphs scanned at the same time, so that a slow graph
+    // doesn't hold up the scans of the others.
+    private static final int SCAN_THREADS = 3;
+    // How long a restarted watcher waits for the previous one to save
+    // its snapshot before it loads it.
+    private static final long RESTART_WAIT_SECONDS = 10;
+
+    // Watched graphs by path, see getWatchKey(). Guards mForeground too.
+    private final Map<String, PollingFsWatcher> mWatchers = new LinkedHashMap();
+    // The most recently watched graph, the one being edited.
+    private PollingFsWatcher mForeground;
+    // Runs the scans of all watchers, each watcher's one at a time.
+    private ScheduledExecutorService mScanScheduler;
+    // Delivers the delayed and coalesced events of all watchers.
+    private ScheduledExecutorService mScheduler;
 
     @Override
     public void load() {
         Log.i("FsWatcher", "Android fs-watcher loaded!");
+        ScheduledThreadPoolExecutor scanScheduler = new ScheduledThreadPoolExecutor(SCAN_THREADS);
+        // Scans are rescheduled on every wake-up.
+        scanScheduler.setRemoveOnCancelPolicy(true);
+        mScanScheduler = scanScheduler;
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        for (PollingFsWatcher watcher : removeWatchers(null)) {
+            watcher.stop();
+        }
+        // Lets the stopped watchers save their snapshots.
+        mScanScheduler.shutdown();
+        mScheduler.shutdownNow();
+    }
+
+    // Nothing is scanned while the app is in the background, changes
+    // made meanwhile are caught up on resume.
+    @Override
+    protected void handleOnPause() {
+        synchronized (mWatchers) {
+            for (PollingFsWatcher watcher : mWatchers.values()) {
+                watcher.setPaused(true);
+            }
+        }
+    }
+
+    @Override
+    protected void handleOnResume() {
+        synchronized (mWatchers) {
+            for (PollingFsWatcher watcher : mWatchers.values()) {
+                watcher.setPaused(false);
+            }
+        }
     }
 
+    // Called by MainActivity on user input, the user is likely to
+    // change the foreground graph soon.
+    public void onUserInteraction() {
+        synchronized (mWatchers) {
+            if (mForeground != null) {
+                mForeground.resetScanInterval();
+            }
+        }
+    }
+
+    // Several graphs can be watched at once. Watching a graph which is
+    // already watched with the same options only makes it the foreground
+    // graph, without another initial scan. With other options, its
+    // watcher is restarted.
     @PluginMethod()
     public void watch(PluginCall call) {
         String pathParam = call.getString("path");
+        if (pathParam == null) {
+            call.reject("missing argument path");
+            return;
+        }
         // check file:// or no scheme uris
         Uri u = Uri.parse(pathParam);
         Log.i("FsWatcher", "watching " + u);
-        // TODO: handle context:// uri
-        if (u.getScheme() == null || u.getScheme().equals("file")) {
-            File pathObj;
-            try {
-                pathObj = new File(u.getPath());
-            } catch (Exception e) {
-                call.reject("invalid watch path: " + pathParam);
+        String key = getWatchKey(pathParam);
+        WatchOptions options = WatchOptions.fromCall(call);
+        synchronized (mWatchers) {
+            PollingFsWatcher watcher = mWatchers.get(key);
+            if (watcher != null && watcher.mOptions.equals(options)) {
+                setForeground(watcher);
+                call.resolve();
                 return;
             }
+        }
 
-            mPath = pathObj.getAbsolutePath();
-
-            if (mWatcher != null) {
-                call.reject("already watching");
+        PollingFsWatcher watcher;
+        if ("content".equals(u.getScheme()) || isFakePath(u)) {
+            // Graphs opened through the SAF, see FakePathFactory.
+            String rootFakePath = "content".equals(u.getScheme())
+                    ? FakePathFactory.buildRootFakePath(DocumentsContract.buildDocumentUriUsingTree(u,
+                    DocumentsContract.getTreeDocumentId(u)), getContext().getContentResolver())
+                    : pathParam.replaceAll("/+$", "");
+            if (rootFakePath == null) {
+                call.reject("invalid watch path: " + pathParam);
                 return;
             }
 
-            mWatcher = new PollingFsWatcher(mPath);
-            mThread = new Thread(mWatcher);
-            mThread.start();
+            watcher = new SafFsWatcher(pathParam, rootFakePath, options);
+        } else if (u.getScheme() == null || u.getScheme().equals("file")) {
+            if (u.getPath() == null) {
+                call.reject("invalid watch path: " + pathParam);
+                return;
+            }
 
-            call.resolve();
+            if ("inotify".equals(options.mode)) {
+                watcher = new InotifyFsWatcher(key, options);
+            } else {
+                watcher = new PollingFsWatcher(key, options);
+            }
         } else {
             call.reject(u.getScheme() + " scheme not supported");
+            return;
+        }
+
+        synchronized (mWatchers) {
+            PollingFsWatcher previous = mWatchers.put(key, watcher);
+            if (previous != null) {
+                Log.i("FsWatcher", "restarting " + key + " with new options");
+                if (mForeground == previous) {
+                    mForeground = null;
+                }
+                previous.stop();
+                watcher.mPrevious = previous;
+            }
+            watcher.start();
+            setForeground(watcher);
+        }
+        call.resolve();
+    }
+
+    // Watchers are keyed by the path as requested, local paths are made
+    // absolute.
+    private static String getWatchKey(String pathParam) {
+        Uri u = Uri.parse(pathParam);
+        if ("content".equals(u.getScheme()) || isFakePath(u) || u.getPath() == null) {
+            return pathParam;
+        }
+        return new File(u.getPath()).getAbsolutePath();
+    }
+
+    // Must hold mWatchers. Switching to another graph catches up on it
+    // with an immediate scan.
+    private void setForeground(PollingFsWatcher watcher) {
+        if (mForeground == watcher) {
+            return;
+        }
+        boolean switched = mForeground != null;
+        mForeground = watcher;
+        for (PollingFsWatcher w : mWatchers.values()) {
+            w.setBackground(w != watcher);
+        }
+        if (switched) {
+            watcher.wakeUp();
+        }
+    }
+
+    // Removes the watcher of the path, or all of them if it's null.
+    private List<PollingFsWatcher> removeWatchers(String pathParam) {
+        List<PollingFsWatcher> removed = new ArrayList<>();
+        synchronized (mWatchers) {
+            if (pathParam == null) {
+                removed.addAll(mWatchers.values());
+                mWatchers.clear();
+            } else {
+                PollingFsWatcher watcher = mWatchers.remove(getWatchKey(pathParam));
+                if (watcher != null) {
+                    removed.add(watcher);
+                }
+            }
+            if (removed.contains(mForeground)) {
+                mForeground = null;
+            }
+        }
+        return removed;
+    }
+
+    // Options of a watch call.
+    static class WatchOptions {
+        // "polling" or "inotify", only for local directories. The
+        // inotify mode reports changes as they happen and only rescans
+        // the graph occasionally.
+        String mode;
+        // Persist the metadata of the graph across app restarts, so
+        // that the changes made while the graph wasn't watched are
+        // reported on the next watch.
+        boolean persistent;
+        // Events of the same path within this window in milliseconds are
+        // coalesced into one.
+        long coalesceWindow;
+        // Deliver the events as arrays in `watcher-batch` notifications
+        // instead of one `watcher` notification per event. Events are
+        // coalesced for at least MIN_BATCH_WINDOW then.
+        boolean batch;
+        // Events carry a hash of the content instead of the content.
+        boolean lazyContent;
+        // Suppress change events of files whose content is the same,
+        // e.g. only the mtime is touched. Files larger than
+        // `fingerprintMaxSize` bytes aren't hashed.
+        boolean fingerprint;
+        long fingerprintMaxSize;
+        // Number of threads scanning local directories in parallel.
+        int scanThreads;
+        // Back off the scan interval while the graph is idle, up to
+        // `maxScanIntervalFactor` times the base interval.
+        boolean adaptive;
+        int maxScanIntervalFactor;
+        // Which files are watched and which ones have their content
+        // sent along with events, see IgnoreRules.
+        IgnoreRules rules;
+
+        static WatchOptions fromCall(PluginCall call) {
+            WatchOptions options = new WatchOptions();
+            options.mode = call.getString("mode", "polling");
+            options.persistent = Boolean.TRUE.equals(call.getBoolean("persistent", false));
+            options.coalesceWindow = Math.max(0, call.getLong("coalesceWindow", 0L));
+            options.batch = Boolean.TRUE.equals(call.getBoolean("batch", false));
+            options.lazyContent = Boolean.TRUE.equals(call.getBoolean("lazyContent", false));
+            options.fingerprint = Boolean.TRUE.equals(call.getBoolean("fingerprint", false));
+            options.fingerprintMaxSize = call.getLong("fingerprintMaxSize", 4L * 1024 * 1024);
+            options.scanThreads = Math.max(1, call.getInt("scanThreads", 1));
+            options.adaptive = Boolean.TRUE.equals(call.getBoolean("adaptive", true));
+            options.maxScanIntervalFactor = Math.max(1, call.getInt("maxScanIntervalFactor", 16));
+            options.rules = IgnoreRules.fromCall(call);
+            return options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WatchOptions)) {
+                return false;
+            }
+            WatchOptions other = (WatchOptions) o;
+            return mode.equals(other.mode) && persistent == other.persistent
+                    && coalesceWindow == other.coalesceWindow && batch == other.batch
+                    && lazyContent == other.lazyContent && fingerprint == other.fingerprint
+                    && fingerprintMaxSize == other.fingerprintMaxSize && scanThreads == other.scanThreads
+                    && adaptive == other.adaptive && maxScanIntervalFactor == other.maxScanIntervalFactor
+                    && rules.equals(other.rules);
+        }
+
+        @Override
+        public int hashCode() {
+            return mode.hashCode() * 31 + rules.hashCode();
         }
     }
 
+    // Fake paths have the document provider as authority, while real
+    // file uris have none.
+    private static boolean isFakePath(Uri u) {
+        return "file".equals(u.getScheme()) && u.getAuthority() != null && !u.getAuthority().isEmpty();
+    }
+
+    // Stops watching the graph at `path`, or all graphs without it.
     @PluginMethod()
     public void unwatch(PluginCall call) {
-        Log.i("FsWatcher", "unwatch all...");
+        String pathParam = call.getString("path");
+        Log.i("FsWatcher", pathParam == null ? "unwatch all..." : "unwatch " + pathParam);
 
-        if (mWatcher != null) {
-            mThread.interrupt();
-            mWatcher = null;
+        for (PollingFsWatcher watcher : removeWatchers(pathParam)) {
+            watcher.stop();
         }
 
         call.resolve();
     }
 
     // add, change, unlink events
-    public void onObserverEvent(int event, String path, SimpleFileMetadata metadata) {
+    public void onObserverEvent(PollingFsWatcher watcher, int event, String path, SimpleFileMetadata metadata) {
+        JSObject obj = buildEvent(watcher, event, path, metadata);
+        if (obj != null) {
+            notifyListeners("watcher", obj);
+        }
+    }
+
+    // Returns null if the event should be abandoned.
+    private JSObject buildEvent(PollingFsWatcher watcher, int event, String path, SimpleFileMetadata metadata) {
         JSObject obj = new JSObject();
         String content = null;
-        File f = new File(path);
+        String filename = path.substring(path.lastIndexOf('/') + 1);
 
-        boolean shouldRead = false;
-        if (Pattern.matches("(?i)[^.].*?\\.(md|org|css|edn|js|markdown|excalidraw)$", f.getName())) {
-            shouldRead = true;
-        }
+        boolean shouldRead = watcher.mOptions.rules.shouldReadContent(filename);
 
-        Uri dir = Uri.fromFile(new File(mPath));
-        Uri fpath = Uri.fromFile(f);
-        String relpath = null;
-
-        if (fpath.getPath().startsWith(dir.getPath())) {
-            relpath = fpath.getPath().substring(dir.getPath().length());
-            if (relpath.startsWith("/")) {
-                relpath = relpath.substring(1);
-            }
-        } else {
+        String relpath = watcher.getRelativePath(path);
+        if (relpath == null) {
             Log.e("FsWatcher", "file path not under watch path");
-            return;
+            return null;
         }
 
 
         obj.put("path", Normalizer.normalize(relpath, Normalizer.Form.NFC));
-        obj.put("dir", Uri.fromFile(new File(mPath))); // Uri is for Android. URI is for RFC compatible
+        obj.put("dir", watcher.getDirUri());
         JSObject stat;
 
         switch (event) {
@@ -119,9 +360,14 @@ public class FsWatcher extends Plugin {
                 stat.put("ctime", metadata.ctime);
                 stat.put("size", metadata.size);
                 obj.put("stat", stat);
+                if (shouldRead && watcher.mOptions.lazyContent) {
+                    putHash(obj, watcher, path, metadata);
+                    Log.i("FsWatcher", "prepare event " + obj);
+                    break;
+                }
                 if (shouldRead) {
                     try {
-                        content = getFileContents(f);
+                        content = watcher.readContent(path);
                     } catch (IOException e) {
                         Log.e("FsWatcher", "error reading modified file");
                         e.printStackTrace();
@@ -138,9 +384,13 @@ public class FsWatcher extends Plugin {
                 stat.put("ctime", metadata.ctime);
                 stat.put("size", metadata.size);
                 obj.put("stat", stat);
+                if (shouldRead && watcher.mOptions.lazyContent) {
+                    putHash(obj, watcher, path, metadata);
+                    break;
+                }
                 if (shouldRead) {
                     try {
-                        content = getFileContents(f);
+                        content = watcher.readContent(path);
                     } catch (IOException e) {
                         Log.e("FsWatcher", "error reading new file");
                         e.printStackTrace();
@@ -149,9 +399,9 @@ public class FsWatcher extends Plugin {
                 obj.put("content", content);
                 break;
             case FileObserver.DELETE:
-                if (f.exists()) {
+                if (watcher.exists(path)) {
                     Log.i("FsWatcher", "abandon delete notification due to file exists");
-                    return;
+                    return null;
                 } else {
                     obj.put("event", "unlink");
                 }
@@ -163,50 +413,316 @@ public class FsWatcher extends Plugin {
                 break;
         }
 
-        notifyListeners("watcher", obj);
+        return obj;
     }
 
-    public static String getFileContents(final File file) throws IOException {
-        InputStream inputStream = new FileInputStream(file);
+    // In the lazy content mode, events carry the CRC32 of the file
+    // instead of its content, which is read by `readChanged` only if the
+    // frontend doesn't have it yet.
+    private void putHash(JSObject obj, PollingFsWatcher watcher, String path, SimpleFileMetadata metadata) {
+        if (metadata.digest != SimpleFileMetadata.NO_DIGEST) {
+            obj.put("hash", ContentHasher.toHex(metadata.digest));
+            return;
+        }
+        try (InputStream is = watcher.openContent(path)) {
+            obj.put("hash", ContentHasher.toHex(ContentHasher.crc32(is)));
+        } catch (IOException e) {
+            Log.e("FsWatcher", "error hashing file " + path);
+        }
+    }
+
+    // Reads the files of a watched directory whose hashes in the events
+    // differ from the frontend's copies. Paths are relative to the
+    // watched directory `dir`, the foreground graph by default, as in
+    // the events.
+    @PluginMethod()
+    public void readChanged(PluginCall call) {
+        String dir = call.getString("dir");
+        PollingFsWatcher watcher;
+        synchronized (mWatchers) {
+            watcher = dir == null ? mForeground : mWatchers.get(getWatchKey(dir));
+        }
+        if (watcher == null) {
+            call.reject("not watching");
+            return;
+        }
+
+        JSArray pathArray = call.getArray("paths");
+        if (pathArray == null) {
+            call.reject("missing argument paths");
+            return;
+        }
+
+        JSArray files = new JSArray();
+        // Events send NFC paths, while names on disk may be NFD, e.g.
+        // from macOS sync clients.
+        Map<String, String> denormalizedPaths = null;
+        for (int i = 0; i < pathArray.length(); i++) {
+            String relpath = pathArray.optString(i);
+            String path = watcher.mPath + "/" + relpath;
+            if (!watcher.isKnownFile(path)) {
+                if (denormalizedPaths == null) {
+                    denormalizedPaths = watcher.getDenormalizedPaths();
+                }
+                String knownPath = denormalizedPaths.get(Normalizer.normalize(relpath, Normalizer.Form.NFC));
+                if (knownPath != null) {
+                    path = knownPath;
+                }
+            }
+            JSObject file = new JSObject();
+            file.put("path", relpath);
+            try (InputStream is = watcher.openContent(path)) {
+                file.put("content", readString(is));
+            } catch (IOException e) {
+                file.put("error", "error reading file: " + e);
+            }
+            files.put(file);
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("files", files);
+        call.resolve(ret);
+    }
+
+    private static String readString(InputStream is) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[64 * 1024];
         int length;
 
-        while ((length = inputStream.read(buffer)) != -1) {
+        while ((length = is.read(buffer)) != -1) {
             outputStream.write(buffer, 0, length);
         }
 
-        inputStream.close();
         return outputStream.toString("utf-8");
     }
 
+    public static String getFileContents(final File file) throws IOException {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            return readString(inputStream);
+        }
+    }
+
+    // Metadata of a file carried by its events.
     public class SimpleFileMetadata {
+        public static final long NO_DIGEST = FileMetadataTable.NO_DIGEST;
+
         public long mtime;
         public long ctime;
         public long size;
         public long ino;
+        // CRC32 of the content, only computed in the fingerprint mode.
+        public long digest = NO_DIGEST;
+
+        public SimpleFileMetadata(long mtime, long ctime, long size, long ino) {
+            this.mtime = mtime;
+            this.ctime = ctime;
+            this.size = size;
+            this.ino = ino;
+        }
+    }
+
+
+    // Delay of delete events, enough for most syncing net disks which
+    // delete then recreate files.
+    private static final long DELETE_DELAY = 500;
+    // Minimal coalescing window of the batch mode, so that the events
+    // of a scan or of a burst of file system events are delivered in a
+    // few batches instead of one per event.
+    private static final long MIN_BATCH_WINDOW = 100;
+
+    // Coalesces the events of a watcher per path and delivers them on
+    // the scheduler. Events of a path within the coalescing window are
+    // merged, e.g. add then change is one add, and delete then add is
+    // one change. Deletes are always delayed by `DELETE_DELAY`.
+    class EventPipeline {
+        private final PollingFsWatcher mWatcher;
+        // Keyed by path, in the order of the first event.
+        private final LinkedHashMap<String, PendingEvent> mPending = new LinkedHashMap();
+        // When the scheduled flush runs, 0 if none is scheduled.
+        private long mFlushAt = 0;
+
+        private class PendingEvent {
+            final String path;
+            int event;
+            SimpleFileMetadata metadata;
+            long dueAt;
+
+            PendingEvent(String path, int event) {
+                this.path = path;
+                this.event = event;
+            }
+        }
+
+        EventPipeline(PollingFsWatcher watcher) {
+            mWatcher = watcher;
+        }
+
+        void add(int event, String path, SimpleFileMetadata metadata) {
+            long window = mWatcher.mOptions.coalesceWindow;
+            if (mWatcher.mOptions.batch) {
+                window = Math.max(window, MIN_BATCH_WINDOW);
+            }
+            long now = SystemClock.uptimeMillis();
+            PendingEvent pending;
+            synchronized (this) {
+                pending = mPending.get(path);
+                if (pending == null) {
+                    pending = new PendingEvent(path, event);
+                    pending.dueAt = now + window;
+                    mPending.put(path, pending);
+                } else if (pending.event == FileObserver.CREATE && event == FileObserver.DELETE) {
+                    // Never seen by the frontend.
+                    mPending.remove(path);
+                    return;
+                } else if (pending.event == FileObserver.DELETE && event != FileObserver.DELETE) {
+                    // Replaced.
+                    pending.event = FileObserver.MODIFY;
+                    pending.dueAt = now + window;
+                } else if (event == FileObserver.DELETE) {
+                    pending.event = FileObserver.DELETE;
+                }
+                // Otherwise add then change stays an add.
+                pending.metadata = metadata;
+                if (pending.event == FileObserver.DELETE) {
+                    pending.dueAt = now + Math.max(window, DELETE_DELAY);
+                }
+
+                if (window > 0 || pending.event == FileObserver.DELETE) {
+                    scheduleFlush(pending.dueAt);
+                    return;
+                }
+                // Nothing to wait for.
+                mPending.remove(path);
+            }
+            deliver(Collections.singletonList(pending));
+        }
+
+        synchronized void clear() {
+            mPending.clear();
+        }
+
+        private synchronized void scheduleFlush(long at) {
+            if (mFlushAt != 0 && mFlushAt <= at) {
+                return;
+            }
+            mFlushAt = at;
+            try {
+                mScheduler.schedule(this::flush, Math.max(0, at - SystemClock.uptimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+        }
 
-        public SimpleFileMetadata(File file) throws ErrnoException {
-            StructStat stat = Os.stat(file.getPath());
-            mtime = stat.st_mtime;
-            ctime = stat.st_ctime;
-            size = stat.st_size;
-            ino = stat.st_ino;
+        private void flush() {
+            List<PendingEvent> events = new ArrayList<>();
+            synchronized (this) {
+                long now = SystemClock.uptimeMillis();
+                long nextFlushAt = Long.MAX_VALUE;
+                Iterator<PendingEvent> it = mPending.values().iterator();
+                while (it.hasNext()) {
+                    PendingEvent pending = it.next();
+                    if (pending.dueAt <= now) {
+                        events.add(pending);
+                        it.remove();
+                    } else {
+                        nextFlushAt = Math.min(nextFlushAt, pending.dueAt);
+                    }
+                }
+                mFlushAt = 0;
+                if (nextFlushAt != Long.MAX_VALUE) {
+                    scheduleFlush(nextFlushAt);
+                }
+            }
+            deliver(events);
         }
 
-        public boolean equals(SimpleFileMetadata other) {
-            return mtime == other.mtime && ctime == other.ctime && size == other.size && ino == other.ino;
+        private void deliver(List<PendingEvent> events) {
+            if (!mWatcher.mOptions.batch) {
+                for (PendingEvent pending : events) {
+                    onObserverEvent(mWatcher, pending.event, pending.path, pending.metadata);
+                }
+                return;
+            }
+
+            JSArray array = new JSArray();
+            for (PendingEvent pending : events) {
+                JSObject obj = buildEvent(mWatcher, pending.event, pending.path, pending.metadata);
+                if (obj != null) {
+                    array.put(obj);
+                }
+            }
+            if (array.length() > 0) {
+                JSObject ret = new JSObject();
+                ret.put("events", array);
+                notifyListeners("watcher-batch", ret);
+            }
         }
     }
 
+    private static final int SNAPSHOT_MAGIC = 0x4c535746; // "LSWF"
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final long SNAPSHOT_SAVE_INTERVAL = 10 * 1000;
 
-    public class PollingFsWatcher implements Runnable {
-        private String mPath;
-        private Map<String, SimpleFileMetadata> metaDb;
+    public class PollingFsWatcher {
+        // The watched directory as requested, which events refer to.
+        protected String mDir;
+        protected String mPath;
+        protected final WatchOptions mOptions;
+        final EventPipeline mEvents;
+        private FileMetadataTable metaDb;
+        // Reused by the scans of tick().
+        private final FileMetadataTable.ScanBuffer mScanBuffer = new FileMetadataTable.ScanBuffer();
+        // Per worker buffers of parallelScan().
+        private final List<FileMetadataTable.ScanBuffer> mWorkerBuffers = new ArrayList<>();
+        private final ThreadLocal<FileMetadataTable.ScanBuffer> mWorkerBuffer = new ThreadLocal<FileMetadataTable.ScanBuffer>() {
+            @Override
+            protected FileMetadataTable.ScanBuffer initialValue() {
+                FileMetadataTable.ScanBuffer buffer = new FileMetadataTable.ScanBuffer(Thread.currentThread());
+                synchronized (mWorkerBuffers) {
+                    mWorkerBuffers.add(buffer);
+                }
+                return buffer;
+            }
+        };
+        private boolean mSnapshotDirty = false;
+        private long mSnapshotSavedAt = 0;
+        private ForkJoinPool mScanPool;
+        // The files and directories re-checked by updatePath() and
+        // updateDirectory() while tick() scans outside of the lock. Their
+        // scanned state may be older than the known one, so the diff of
+        // the scan leaves them alone. Null when not scanning.
+        private HashSet<String> mObservedPaths;
+        private List<String> mObservedDirs;
+        // New or changed files to be hashed outside of the lock, see
+        // hashPendingFiles().
+        private List<PendingFile> mPendingFiles = new ArrayList<>();
 
-        public PollingFsWatcher(String path) {
-            metaDb = new HashMap();
+        // Scheduling of the scans on the shared scan scheduler, see
+        // scheduleNextScan(). Guarded by mScheduleLock.
+        private final Object mScheduleLock = new Object();
+        // Null while scanning, paused or stopped.
+        private ScheduledFuture<?> mNextScan;
+        // Scans run on a pool, so nothing is scheduled while scanning.
+        private boolean mScanning = false;
+        private boolean mWakeUpPending = false;
+        private boolean mPaused = false;
+        private boolean mBackground = false;
+        private boolean mStopped = false;
+        private long mScanInterval = getScanInterval();
+        private long mLastScanAt = 0;
+        // Only accessed by the scans.
+        private boolean mStarted = false;
+        // The watcher this one replaces, whose snapshot is saved on stop.
+        // Cleared once it's stopped.
+        private volatile PollingFsWatcher mPrevious;
+        private final CountDownLatch mStoppedLatch = new CountDownLatch(1);
+
+        public PollingFsWatcher(String path, WatchOptions options) {
+            metaDb = new FileMetadataTable();
+            mDir = path;
+            mOptions = options;
+            mEvents = new EventPipeline(this);
 
             File dir = new File(path);
             try {
@@ -216,28 +732,368 @@ public class FsWatcher extends Plugin {
             }
         }
 
-        @Override
-        public void run() {
-            this.tick(false); // skip initial notification
+        protected PollingFsWatcher(String dir, String root, WatchOptions options) {
+            metaDb = new FileMetadataTable();
+            mDir = dir;
+            mPath = root;
+            mOptions = options;
+            mEvents = new EventPipeline(this);
+        }
+
+        public String getDirUri() {
+            return Uri.fromFile(new File(mDir)).toString(); // Uri is for Android. URI is for RFC compatible
+        }
+
+        // Returns the path relative to the watched directory, or null if
+        // the path isn't under it.
+        public String getRelativePath(String path) {
+            if (!path.startsWith(mPath + "/")) {
+                return null;
+            }
+            return path.substring(mPath.length() + 1);
+        }
+
+        public String readContent(String path) throws IOException {
+            return getFileContents(new File(path));
+        }
+
+        public InputStream openContent(String path) throws IOException {
+            return new FileInputStream(path);
+        }
+
+        public boolean exists(String path) {
+            return new File(path).exists();
+        }
+
+        public void start() {
+            synchronized (mScheduleLock) {
+                scheduleLocked(0);
+            }
+        }
+
+        // Stops scanning. A scan in progress is finished first, then
+        // onStopped() runs at its end.
+        public void stop() {
+            boolean scanning;
+            synchronized (mScheduleLock) {
+                mStopped = true;
+                if (mNextScan != null) {
+                    mNextScan.cancel(false);
+                    mNextScan = null;
+                }
+                scanning = mScanning;
+            }
+            mEvents.clear();
+            if (scanning) {
+                return;
+            }
+            try {
+                mScanScheduler.execute(this::finishStop);
+            } catch (RejectedExecutionException e) {
+                this.finishStop();
+            }
+        }
+
+        private void finishStop() {
+            try {
+                this.onStopped();
+            } finally {
+                mStoppedLatch.countDown();
+            }
+        }
+
+        // Runs on the scan scheduler, the first run builds the initial
+        // state.
+        private void runScan() {
+            synchronized (mScheduleLock) {
+                if (mStopped) {
+                    return;
+                }
+                mNextScan = null;
+                mScanning = true;
+                mWakeUpPending = false;
+            }
+
+            boolean changed = false;
+            try {
+                if (!mStarted) {
+                    mStarted = true;
+                    PollingFsWatcher previous = mPrevious;
+                    if (previous != null) {
+                        previous.awaitStopped();
+                        mPrevious = null;
+                    }
+                    this.onStarted();
+                } else {
+                    changed = this.tick(true);
+                }
+                this.saveSnapshot(false);
+            } catch (RuntimeException e) {
+                Log.e("FsWatcher", "error scanning " + mDir + ": " + e);
+            }
+
+            boolean stopped;
+            synchronized (mScheduleLock) {
+                mScanning = false;
+                stopped = mStopped;
+            }
+            if (stopped) {
+                this.finishStop();
+            } else {
+                this.scheduleNextScan(changed);
+            }
+        }
+
+        private void awaitStopped() {
+            try {
+                if (!mStoppedLatch.await(RESTART_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    Log.w("FsWatcher", "previous watcher of " + mDir + " didn't stop in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected void onStarted() {
+            this.initialTick();
+        }
+
+        // The interval doubles after each scan without changes, up to
+        // maxScanIntervalFactor times getScanInterval(), and is reset by
+        // changes and user input. Background graphs wait
+        // BACKGROUND_SCAN_INTERVAL_FACTOR times longer.
+        private void scheduleNextScan(boolean changed) {
+            synchronized (mScheduleLock) {
+                long baseInterval = getScanInterval();
+                if (changed || !mOptions.adaptive) {
+                    mScanInterval = baseInterval;
+                } else {
+                    mScanInterval = Math.min(mScanInterval * 2, baseInterval * mOptions.maxScanIntervalFactor);
+                }
+                mLastScanAt = SystemClock.uptimeMillis();
+                scheduleLocked(mWakeUpPending ? 0 : getScanDelayLocked());
+            }
+        }
+
+        private long getScanDelayLocked() {
+            return mScanInterval * (mBackground ? BACKGROUND_SCAN_INTERVAL_FACTOR : 1);
+        }
 
-            while (!Thread.currentThread().isInterrupted()) {
+        // Replaces the scheduled scan. Nothing is scheduled while paused,
+        // stopped or scanning, a scan schedules the next one at its end.
+        private void scheduleLocked(long delay) {
+            if (mStopped || mPaused || mScanning) {
+                return;
+            }
+            if (mNextScan != null) {
+                mNextScan.cancel(false);
+            }
+            try {
+                mNextScan = mScanScheduler.schedule(this::runScan, Math.max(0, delay), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // destroyed
+                mNextScan = null;
+            }
+        }
+
+        // Moves the scheduled scan after the interval changed.
+        private void rescheduleLocked() {
+            if (mNextScan != null) {
+                scheduleLocked(mLastScanAt + getScanDelayLocked() - SystemClock.uptimeMillis());
+            }
+        }
+
+        // Scans as soon as possible. A scan in progress is followed by
+        // another one.
+        protected void wakeUp() {
+            synchronized (mScheduleLock) {
+                mWakeUpPending = true;
+                mScanInterval = getScanInterval();
+                if (mNextScan != null) {
+                    scheduleLocked(0);
+                }
+            }
+        }
+
+        // Goes back to the base interval, counted from the last scan.
+        public void resetScanInterval() {
+            synchronized (mScheduleLock) {
+                if (mScanInterval == getScanInterval()) {
+                    return; // cheap, this is called on every touch
+                }
+                mScanInterval = getScanInterval();
+                rescheduleLocked();
+            }
+        }
+
+        public void setBackground(boolean background) {
+            synchronized (mScheduleLock) {
+                if (mBackground == background) {
+                    return;
+                }
+                mBackground = background;
+                rescheduleLocked();
+            }
+        }
+
+        // A catch-up scan is done on resume.
+        public void setPaused(boolean paused) {
+            synchronized (mScheduleLock) {
+                if (mPaused == paused) {
+                    return;
+                }
+                mPaused = paused;
+                if (paused) {
+                    if (mNextScan != null) {
+                        mNextScan.cancel(false);
+                        mNextScan = null;
+                    }
+                } else {
+                    mWakeUpPending = true;
+                    mScanInterval = getScanInterval();
+                    scheduleLocked(0);
+                }
+            }
+            if (paused) {
+                // The app may be killed in the background.
                 try {
-                    this.tick(true);
-                    Thread.sleep(2000); // The same as iOS fswatcher, 2s interval
-                } catch (InterruptedException e) {
-                    // e.printStackTrace();
-                    Log.i("FsWatcher", "interrupted, unwatch");
-                    break;
+                    mScanScheduler.execute(() -> saveSnapshot(true));
+                } catch (RejectedExecutionException e) {
+                    // destroyed
                 }
             }
+        }
+
+        protected void onStopped() {
+            this.saveSnapshot(true);
+            synchronized (this) {
+                if (mScanPool != null) {
+                    mScanPool.shutdownNow();
+                    mScanPool = null;
+                }
+            }
+        }
+
+        // Builds the initial state of the graph. Only the changes made
+        // since the persisted snapshot are notified, if there is one.
+        protected void initialTick() {
+            FileMetadataTable snapshot = mOptions.persistent ? loadSnapshot() : null;
+            if (snapshot == null) {
+                this.tick(false); // skip initial notification
+                synchronized (this) {
+                    mSnapshotDirty = true;
+                }
+                return;
+            }
+
+            synchronized (this) {
+                this.metaDb = snapshot;
+            }
+            this.tick(true);
+        }
+
+        private DataFile getSnapshotFile() {
+            File directory = new File(getContext().getNoBackupFilesDir(), "fs-watcher");
+            return new DataFile(new File(directory, DataFile.nameOf(mDir) + ".snapshot"), SNAPSHOT_MAGIC, SNAPSHOT_VERSION);
+        }
+
+        private FileMetadataTable loadSnapshot() {
+            FileMetadataTable[] snapshot = new FileMetadataTable[1];
+            boolean loaded = getSnapshotFile().read(in -> {
+                if (!in.readUTF().equals(mDir)) {
+                    return false;
+                }
+
+                int count = in.readInt();
+                snapshot[0] = new FileMetadataTable(count);
+                for (int i = 0; i < count; i++) {
+                    String path = mPath + "/" + in.readUTF();
+                    snapshot[0].insert(path, in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+                }
+                return true;
+            });
+            return loaded ? snapshot[0] : null;
+        }
+
+        // Persists the metadata of the graph if it changed. Writes are
+        // throttled unless forced.
+        protected synchronized void saveSnapshot(boolean force) {
+            long now = System.currentTimeMillis();
+            if (!mOptions.persistent || !mSnapshotDirty || (!force && now - mSnapshotSavedAt < SNAPSHOT_SAVE_INTERVAL)) {
+                return;
+            }
+
+            boolean saved = getSnapshotFile().write(out -> {
+                out.writeUTF(mDir);
+                out.writeInt(metaDb.size());
+                for (int row = 0; row < metaDb.getRowLimit(); row++) {
+                    String path = metaDb.getPath(row);
+                    if (path == null) {
+                        continue;
+                    }
+                    out.writeUTF(getRelativePath(path));
+                    out.writeLong(metaDb.getMtime(row));
+                    out.writeLong(metaDb.getCtime(row));
+                    out.writeLong(metaDb.getSize(row));
+                    out.writeLong(metaDb.getIno(row));
+                    out.writeLong(metaDb.getDigest(row));
+                }
+            });
+            if (saved) {
+                mSnapshotDirty = false;
+                mSnapshotSavedAt = now;
+            }
+        }
+
+        protected long getScanInterval() {
+            return 2000; // The same as iOS fswatcher, 2s interval
+        }
+
+        // Returns whether any change is found.
+        protected boolean tick(boolean shouldNotify) {
+            FileMetadataTable.ScanBuffer scanned = mScanBuffer;
+            synchronized (this) {
+                mObservedPaths = new HashSet<>();
+                mObservedDirs = new ArrayList<>();
+            }
+            if (!scanGraph(scanned)) {
+                synchronized (this) {
+                    mObservedPaths = null;
+                    mObservedDirs = null;
+                }
+                scanned.clear();
+                return false;
+            }
 
+            boolean changed;
+            synchronized (this) {
+                changed = this.updateMetaDb(scanned, null, shouldNotify, true);
+                mObservedPaths = null;
+                mObservedDirs = null;
+                scanned.clear();
+                if (!shouldNotify) {
+                    return false;
+                }
+                mSnapshotDirty |= changed;
+            }
+            hashPendingFiles();
+            return changed;
         }
 
-        private void tick(boolean shouldNotify) {
-            Map<String, SimpleFileMetadata> newMetaDb = new HashMap();
+        // Collects the stats of all files of the graph. Returns false if
+        // the graph can't be scanned for now.
+        protected boolean scanGraph(FileMetadataTable.ScanBuffer out) {
+            if (mOptions.scanThreads > 1) {
+                return parallelScan(mPath, out);
+            }
+            return scan(mPath, out);
+        }
 
+        // Collects the stats of all files under the given directory.
+        // Returns false if the directory can't be scanned for now.
+        protected boolean scan(String root, FileMetadataTable.ScanBuffer out) {
             Stack<String> paths = new Stack();
-            paths.push(mPath);
+            paths.push(root);
             while (!paths.isEmpty()) {
                 String dir = paths.pop();
                 File curr = new File(dir);
@@ -245,63 +1101,642 @@ public class FsWatcher extends Plugin {
                 File[] files = curr.listFiles();
                 if (files != null) {
                     for (File file : files) {
-                        String filename = file.getName();
-                        if (file.isDirectory()) {
-                            if (!filename.startsWith(".") && !filename.equals("bak") && !filename.equals("version-files") && !filename.equals("node_modules")) {
-                                paths.push(file.getAbsolutePath());
-                            }
-                        } else if (file.isFile() && !filename.equals("graphs-txid.edn") && !filename.equals("broken-config.edn")) {
-                            try {
-                                SimpleFileMetadata metadata = new SimpleFileMetadata(file);
-                                newMetaDb.put(file.getAbsolutePath(), metadata);
-                            } catch (ErrnoException e) {
-                            }
+                        String subdir = scanFile(file, out);
+                        if (subdir != null) {
+                            paths.push(subdir);
                         }
                     }
                 }
             }
 
-            if (shouldNotify) {
-                this.updateMetaDb(newMetaDb);
-            } else {
-                this.metaDb = newMetaDb;
+            return true;
+        }
+
+        // Adds the stat of a file to the buffer, one stat call per file.
+        // Returns the path if it's a directory to descend into.
+        private String scanFile(File file, FileMetadataTable.ScanBuffer out) {
+            String filename = file.getName();
+            StructStat stat;
+            try {
+                stat = Os.stat(file.getPath());
+            } catch (ErrnoException e) {
+                return null;
+            }
+
+            String path = file.getAbsolutePath();
+            if (OsConstants.S_ISDIR(stat.st_mode)) {
+                return shouldIgnoreDirectory(filename, path) ? null : path;
+            }
+            if (OsConstants.S_ISREG(stat.st_mode) && !shouldIgnoreFile(filename, path)) {
+                out.add(path, stat.st_mtime, stat.st_ctime, stat.st_size, stat.st_ino);
+            }
+            return null;
+        }
+
+        // Excluded directories are skipped with their subtree.
+        protected boolean shouldIgnoreDirectory(String name, String path) {
+            return mOptions.rules.shouldIgnoreDirectory(name, path, mPath.length() + 1);
+        }
+
+        protected boolean shouldIgnoreFile(String name, String path) {
+            return mOptions.rules.shouldIgnoreFile(name, path, mPath.length() + 1);
+        }
+
+        // Scans subdirectories on a work-stealing pool, so that each
+        // worker stats a different part of the tree into its own buffer.
+        private boolean parallelScan(String root, FileMetadataTable.ScanBuffer out) {
+            ForkJoinPool pool;
+            synchronized (this) {
+                if (mScanPool == null) {
+                    mScanPool = new ForkJoinPool(mOptions.scanThreads);
+                }
+                pool = mScanPool;
+            }
+
+            synchronized (mWorkerBuffers) {
+                Iterator<FileMetadataTable.ScanBuffer> iterator = mWorkerBuffers.iterator();
+                while (iterator.hasNext()) {
+                    FileMetadataTable.ScanBuffer buffer = iterator.next();
+                    if (buffer.owner.isAlive()) {
+                        buffer.clear();
+                    } else {
+                        // The pool retired the worker.
+                        iterator.remove();
+                    }
+                }
+            }
+
+            try {
+                pool.invoke(new ScanDirectoryTask(new File(root)));
+            } catch (RejectedExecutionException | CancellationException e) {
+                // Unwatched.
+                return false;
+            }
+
+            synchronized (mWorkerBuffers) {
+                for (FileMetadataTable.ScanBuffer buffer : mWorkerBuffers) {
+                    out.addAll(buffer);
+                    buffer.clear();
+                }
+            }
+            return true;
+        }
+
+        // A new or changed file waiting for its digest, with the stat it's
+        // hashed for.
+        private class PendingFile {
+            final String path;
+            final long mtime;
+            final long ctime;
+            final long size;
+            final long ino;
+            final boolean created;
+            final long oldDigest;
+            final long oldSize;
+
+            PendingFile(String path, long mtime, long ctime, long size, long ino, boolean created, long oldDigest,
+                        long oldSize) {
+                this.path = path;
+                this.mtime = mtime;
+                this.ctime = ctime;
+                this.size = size;
+                this.ino = ino;
+                this.created = created;
+                this.oldDigest = oldDigest;
+                this.oldSize = oldSize;
+            }
+        }
+
+        private class ScanDirectoryTask extends RecursiveAction {
+            // Files of a large directory are split into tasks of this
+            // size, so they're also stat'ed in parallel.
+            private static final int FILES_PER_TASK = 256;
+
+            private final File mDirectory;
+            private final File[] mFiles;
+            private final int mFrom;
+            private final int mTo;
+
+            ScanDirectoryTask(File directory) {
+                this(directory, null, 0, 0);
+            }
+
+            private ScanDirectoryTask(File directory, File[] files, int from, int to) {
+                mDirectory = directory;
+                mFiles = files;
+                mFrom = from;
+                mTo = to;
+            }
+
+            @Override
+            protected void compute() {
+                File[] files = mFiles;
+                int from = mFrom;
+                int to = mTo;
+                List<RecursiveAction> tasks = new ArrayList<>();
+                if (files == null) {
+                    files = mDirectory.listFiles();
+                    if (files == null) {
+                        return;
+                    }
+                    from = 0;
+                    for (int start = FILES_PER_TASK; start < files.length; start += FILES_PER_TASK) {
+                        tasks.add(new ScanDirectoryTask(mDirectory, files, start, Math.min(start + FILES_PER_TASK, files.length)));
+                    }
+                    to = Math.min(FILES_PER_TASK, files.length);
+                }
+
+                FileMetadataTable.ScanBuffer out = mWorkerBuffer.get();
+                for (int i = from; i < to; i++) {
+                    String subdir = scanFile(files[i], out);
+                    if (subdir != null) {
+                        tasks.add(new ScanDirectoryTask(files[i]));
+                    }
+                }
+                invokeAll(tasks);
+            }
+        }
+
+        // Re-checks a single file, e.g. after the file system reported a
+        // change of it, and notifies the difference from the known state.
+        protected void updatePath(String path) {
+            synchronized (this) {
+                if (mObservedPaths != null) {
+                    mObservedPaths.add(path);
+                }
+                StructStat stat = null;
+                if (!shouldIgnoreFile(path.substring(path.lastIndexOf('/') + 1), path)) {
+                    try {
+                        stat = Os.stat(path);
+                    } catch (ErrnoException e) {
+                    }
+                }
+
+                if (stat == null || !OsConstants.S_ISREG(stat.st_mode)) {
+                    int row = metaDb.find(path);
+                    if (row >= 0) {
+                        metaDb.remove(row);
+                        mEvents.add(FileObserver.DELETE, path, null);
+                        mSnapshotDirty = true;
+                    }
+                } else if (updateFile(path, stat.st_mtime, stat.st_ctime, stat.st_size, stat.st_ino,
+                        metaDb.getGeneration(), true)) {
+                    mSnapshotDirty = true;
+                }
             }
+            hashPendingFiles();
         }
 
-        private void updateMetaDb(Map<String, SimpleFileMetadata> newMetaDb) {
-            for (Map.Entry<String, SimpleFileMetadata> entry : newMetaDb.entrySet()) {
-                String path = entry.getKey();
-                SimpleFileMetadata newMeta = entry.getValue();
-                SimpleFileMetadata oldMeta = metaDb.remove(path);
-                if (oldMeta == null) {
-                    // new file
-                    onObserverEvent(FileObserver.CREATE, path, newMeta);
+        // Diffs the new stat of an existing file against the known one in
+        // place, marks it seen in the generation and notifies the
+        // difference. Files to be fingerprinted are only notified once
+        // hashPendingFiles() hashed them. Returns whether the metadata
+        // changed.
+        private boolean updateFile(String path, long mtime, long ctime, long size, long ino, int generation, boolean shouldNotify) {
+            int row = metaDb.find(path);
+            if (row < 0) {
+                // new file
+                row = metaDb.insert(path, mtime, ctime, size, ino, SimpleFileMetadata.NO_DIGEST);
+                metaDb.mark(row, generation);
+                if (shouldNotify && shouldFingerprint(size)) {
+                    mPendingFiles.add(new PendingFile(path, mtime, ctime, size, ino, true,
+                            SimpleFileMetadata.NO_DIGEST, 0));
+                } else if (shouldNotify) {
+                    mEvents.add(FileObserver.CREATE, path, getMetadata(row));
                     Log.d("FsWatcher", "create " + path);
-                } else if (!oldMeta.equals(newMeta)) {
-                    // file changed
-                    onObserverEvent(FileObserver.MODIFY, path, newMeta);
-                    Log.d("FsWatcher", "changed " + path);
                 }
+                return true;
+            }
+
+            metaDb.mark(row, generation);
+            if (metaDb.matches(row, mtime, ctime, size, ino)) {
+                return false;
+            }
+
+            long oldDigest = metaDb.getDigest(row);
+            long oldSize = metaDb.getSize(row);
+            metaDb.set(row, mtime, ctime, size, ino, SimpleFileMetadata.NO_DIGEST);
+            if (!shouldNotify) {
+                return true;
+            }
+            if (shouldFingerprint(size)) {
+                mPendingFiles.add(new PendingFile(path, mtime, ctime, size, ino, false, oldDigest, oldSize));
+                return true;
+            }
+            // file changed
+            mEvents.add(FileObserver.MODIFY, path, getMetadata(row));
+            Log.d("FsWatcher", "changed " + path);
+            return true;
+        }
+
+        // Hashes the files queued by updateFile() without holding the
+        // watcher, so observers and events don't wait on reads, then
+        // notifies their changes. Files whose stat changed meanwhile are
+        // left to whoever saw the change.
+        private void hashPendingFiles() {
+            List<PendingFile> pending;
+            synchronized (this) {
+                if (mPendingFiles.isEmpty()) {
+                    return;
+                }
+                pending = mPendingFiles;
+                mPendingFiles = new ArrayList<>();
+            }
+
+            long[] digests = new long[pending.size()];
+            for (int i = 0; i < digests.length; i++) {
+                digests[i] = fingerprint(pending.get(i).path);
+            }
+
+            synchronized (this) {
+                for (int i = 0; i < digests.length; i++) {
+                    PendingFile file = pending.get(i);
+                    int row = metaDb.find(file.path);
+                    if (row < 0 || !metaDb.matches(row, file.mtime, file.ctime, file.size, file.ino)) {
+                        continue;
+                    }
+                    metaDb.set(row, file.mtime, file.ctime, file.size, file.ino, digests[i]);
+                    mSnapshotDirty = true;
+                    if (file.created) {
+                        mEvents.add(FileObserver.CREATE, file.path, getMetadata(row));
+                        Log.d("FsWatcher", "create " + file.path);
+                    } else if (digests[i] != SimpleFileMetadata.NO_DIGEST && digests[i] == file.oldDigest
+                            && file.size == file.oldSize) {
+                        // Only the stat changed, e.g. the file is rewritten with
+                        // the same content by a syncing tool.
+                        Log.d("FsWatcher", "unchanged content " + file.path);
+                    } else {
+                        // file changed
+                        mEvents.add(FileObserver.MODIFY, file.path, getMetadata(row));
+                        Log.d("FsWatcher", "changed " + file.path);
+                    }
+                }
+            }
+        }
+
+        private boolean shouldFingerprint(long size) {
+            return mOptions.fingerprint && size <= mOptions.fingerprintMaxSize;
+        }
+
+        // Computes the digest of the file, or returns NO_DIGEST.
+        private long fingerprint(String path) {
+            try (InputStream is = openContent(path)) {
+                return ContentHasher.crc32(is);
+            } catch (IOException e) {
+                Log.e("FsWatcher", "error hashing file " + path);
+                return SimpleFileMetadata.NO_DIGEST;
+            }
+        }
+
+        // Events outlive the row, so they carry a copy.
+        private SimpleFileMetadata getMetadata(int row) {
+            SimpleFileMetadata meta = new SimpleFileMetadata(metaDb.getMtime(row), metaDb.getCtime(row),
+                    metaDb.getSize(row), metaDb.getIno(row));
+            meta.digest = metaDb.getDigest(row);
+            return meta;
+        }
+
+        protected synchronized boolean isKnownFile(String path) {
+            return metaDb.find(path) >= 0;
+        }
+
+        // Known files whose relative path isn't in NFC, keyed by the NFC
+        // form sent in their events.
+        protected synchronized Map<String, String> getDenormalizedPaths() {
+            Map<String, String> paths = new HashMap<>();
+            for (int row = 0; row < metaDb.getRowLimit(); row++) {
+                String path = metaDb.getPath(row);
+                String relpath = path == null ? null : getRelativePath(path);
+                if (relpath != null && !Normalizer.isNormalized(relpath, Normalizer.Form.NFC)) {
+                    paths.put(Normalizer.normalize(relpath, Normalizer.Form.NFC), path);
+                }
+            }
+            return paths;
+        }
+
+        // Re-checks all known files under the given directory, e.g.
+        // after the directory is moved away.
+        protected void updateDirectory(String dir) {
+            synchronized (this) {
+                FileMetadataTable.ScanBuffer scanned = new FileMetadataTable.ScanBuffer();
+                if (!scan(dir, scanned)) {
+                    return;
+                }
+                if (mObservedDirs != null) {
+                    mObservedDirs.add(dir + "/");
+                }
+                if (updateMetaDb(scanned, dir + "/", true, false)) {
+                    mSnapshotDirty = true;
+                }
+            }
+            hashPendingFiles();
+        }
+
+        // Diffs the scanned files against the known files under the
+        // prefix, or all of them if it's null. Known files which weren't
+        // scanned are deleted. Files re-checked since the scan started are
+        // skipped if `skipObserved`. Returns whether anything changed.
+        private boolean updateMetaDb(FileMetadataTable.ScanBuffer scanned, String prefix, boolean shouldNotify,
+                                     boolean skipObserved) {
+            boolean changed = false;
+            int generation = metaDb.nextGeneration();
+            for (int i = 0; i < scanned.size(); i++) {
+                String path = scanned.getPath(i);
+                if (skipObserved && isObserved(path)) {
+                    continue;
+                }
+                changed |= updateFile(path, scanned.getMtime(i), scanned.getCtime(i),
+                        scanned.getSize(i), scanned.getIno(i), generation, shouldNotify);
             }
-            for (String path : metaDb.keySet()) {
+
+            for (int row = 0; row < metaDb.getRowLimit(); row++) {
+                String path = metaDb.getPath(row);
+                if (path == null || metaDb.isMarked(row, generation)
+                        || (prefix != null && !path.startsWith(prefix))
+                        || (skipObserved && isObserved(path))) {
+                    continue;
+                }
                 // file deleted
-                Thread timer = new Thread() {
-                    @Override
-                    public void run() {
-                        try {
-                            // delay 500ms then send, enough for most syncing net disks
-                            Thread.sleep(500);
-                            onObserverEvent(FileObserver.DELETE, path, null);
-                            Log.d("FsWatcher", "deleted " + path);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+                metaDb.remove(row);
+                if (shouldNotify) {
+                    mEvents.add(FileObserver.DELETE, path, null);
+                }
+                changed = true;
+            }
+            return changed;
+        }
+
+        private boolean isObserved(String path) {
+            if (mObservedPaths == null) {
+                return false;
+            }
+            if (mObservedPaths.contains(path)) {
+                return true;
+            }
+            for (String dir : mObservedDirs) {
+                if (path.startsWith(dir)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Watches the graph with inotify based FileObservers, one per
+    // directory, so changes are reported as soon as they happen without
+    // rescanning the whole graph. The polling scan is kept at a low
+    // frequency to reconcile anything the observers missed, e.g. events
+    // dropped on inotify queue overflow.
+    public class InotifyFsWatcher extends PollingFsWatcher {
+        private static final int OBSERVER_MASK = FileObserver.CLOSE_WRITE | FileObserver.CREATE | FileObserver.DELETE
+                | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF;
+
+        // FileObservers stop watching once garbage collected, so keep
+        // them referenced. Keyed by the directory path.
+        private final Map<String, DirectoryObserver> observers = new HashMap();
+        private volatile boolean ready = false;
+
+        public InotifyFsWatcher(String path, WatchOptions options) {
+            super(path, options);
+        }
+
+        @Override
+        protected void onStarted() {
+            observeTree(mPath);
+            this.initialTick();
+            ready = true;
+            // Events during the initial scan are dropped, catch up on
+            // them with another scan.
+            this.tick(true);
+        }
+
+        @Override
+        protected void onStopped() {
+            super.onStopped();
+            synchronized (observers) {
+                for (DirectoryObserver observer : observers.values()) {
+                    observer.stopWatching();
+                }
+                observers.clear();
+            }
+        }
+
+        @Override
+        protected long getScanInterval() {
+            return 60 * 1000; // reconciliation only
+        }
+
+        private void observeTree(String root) {
+            Stack<String> paths = new Stack();
+            paths.push(root);
+            while (!paths.isEmpty()) {
+                String dir = paths.pop();
+                synchronized (observers) {
+                    if (!observers.containsKey(dir)) {
+                        DirectoryObserver observer = new DirectoryObserver(dir);
+                        observers.put(dir, observer);
+                        observer.startWatching();
+                    }
+                }
+
+                File[] files = new File(dir).listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.isDirectory() && !shouldIgnoreDirectory(file.getName(), file.getAbsolutePath())) {
+                            paths.push(file.getAbsolutePath());
+                        }
+                    }
+                }
+            }
+        }
+
+        private void unobserveTree(String root) {
+            String prefix = root + "/";
+            synchronized (observers) {
+                Iterator<Map.Entry<String, DirectoryObserver>> it = observers.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, DirectoryObserver> entry = it.next();
+                    if (entry.getKey().equals(root) || entry.getKey().startsWith(prefix)) {
+                        entry.getValue().stopWatching();
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        private void onDirectoryEvent(String dir, int event, String name) {
+            if (!ready) {
+                // The initial scan will pick it up.
+                return;
+            }
+
+            String path = dir + "/" + name;
+            if ((event & FileObserver.DELETE_SELF) != 0) {
+                unobserveTree(dir);
+                updateDirectory(dir);
+                return;
+            }
+
+            File file = new File(path);
+            if (file.isDirectory()) {
+                if (!shouldIgnoreDirectory(name, path)) {
+                    // A new or moved in directory, its files are reported
+                    // as added.
+                    observeTree(path);
+                    updateDirectory(path);
+                }
+            } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                if (isKnownFile(path)) {
+                    updatePath(path);
+                } else {
+                    // A directory which no longer exists.
+                    unobserveTree(path);
+                    updateDirectory(path);
+                }
+            } else if ((event & FileObserver.CREATE) == 0) {
+                // Files are reported once written and closed, instead of
+                // on creation when they're usually still empty.
+                updatePath(path);
+            }
+        }
+
+        private class DirectoryObserver extends FileObserver {
+            private final String mDir;
+
+            DirectoryObserver(String dir) {
+                super(dir, OBSERVER_MASK);
+                mDir = dir;
+            }
+
+            @Override
+            public void onEvent(int event, String name) {
+                if (name == null && (event & FileObserver.DELETE_SELF) == 0) {
+                    return;
+                }
+                onDirectoryEvent(mDir, event & FileObserver.ALL_EVENTS, name);
+            }
+        }
+    }
+
+    // Watches a graph opened through the SAF, whose files are only
+    // reachable through the DocumentsProvider. Paths are the fake paths
+    // built by FakePathFactory. Providers which send change
+    // notifications wake the watcher up immediately, otherwise it polls
+    // the size and last modified time of the documents, backing off
+    // while nothing changes.
+    public class SafFsWatcher extends PollingFsWatcher {
+        private final ContentObserver mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                wakeUp();
+            }
+        };
+
+        public SafFsWatcher(String dir, String rootFakePath, WatchOptions options) {
+            super(dir, rootFakePath, options);
+        }
+
+        @Override
+        protected void onStarted() {
+            Uri rootUri = FakePathFactory.fakePathToRootUri(mPath);
+            try {
+                getContext().getContentResolver().registerContentObserver(
+                        DocumentsContract.buildChildDocumentsUriUsingTree(rootUri,
+                                DocumentsContract.getDocumentId(rootUri)), true, mObserver);
+            } catch (SecurityException e) {
+                Log.w("FsWatcher", "unable to observe " + rootUri + ", polling only");
+            }
+            this.initialTick();
+        }
+
+        @Override
+        protected void onStopped() {
+            super.onStopped();
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+        }
+
+        @Override
+        public String getDirUri() {
+            return mDir;
+        }
+
+        @Override
+        public String readContent(String path) throws IOException {
+            ContentResolver contentResolver = getContext().getContentResolver();
+            Uri uri = FakePathFactory.fakePathToUri(path, contentResolver);
+            if (uri == null) {
+                throw new FileNotFoundException(path);
+            }
+            return SafUtil.readFile(uri, StandardCharsets.UTF_8, contentResolver);
+        }
+
+        @Override
+        public InputStream openContent(String path) throws IOException {
+            ContentResolver contentResolver = getContext().getContentResolver();
+            Uri uri = FakePathFactory.fakePathToUri(path, contentResolver);
+            if (uri == null) {
+                throw new FileNotFoundException(path);
+            }
+            InputStream is = contentResolver.openInputStream(uri);
+            if (is == null) {
+                throw new IOException("Failed to open input stream");
+            }
+            return is;
+        }
+
+        @Override
+        public boolean exists(String path) {
+            // Also evicts the cached document of a deleted file.
+            FakePathFactory.invalidateCache(path);
+            return FakePathFactory.fakePathToUri(path, getContext().getContentResolver()) != null;
+        }
+
+        // Lists the tree breadth first by document ids, the same way as
+        // `SafBasedFs.listTree`.
+        @Override
+        protected boolean scanGraph(FileMetadataTable.ScanBuffer out) {
+            return scan(mPath, out);
+        }
+
+        @Override
+        protected boolean scan(String root, FileMetadataTable.ScanBuffer out) {
+            ContentResolver contentResolver = getContext().getContentResolver();
+            Uri rootUri = FakePathFactory.fakePathToUri(root, contentResolver);
+            if (rootUri == null) {
+                return false;
+            }
+
+            ArrayDeque<String[]> pending = new ArrayDeque<>();
+            pending.add(new String[]{root, DocumentsContract.getDocumentId(rootUri)});
+            while (!pending.isEmpty()) {
+                String[] dir = pending.poll();
+                Uri folderUri = DocumentsContract.buildChildDocumentsUriUsingTree(rootUri, dir[1]);
+                try (Cursor cursor = contentResolver.query(folderUri, SafUtil.statColumns(), null, null, null)) {
+                    if (cursor == null) {
+                        // Don't report the files of the folder as deleted.
+                        return false;
+                    }
+
+                    int idColumn = cursor.getColumnIndexOrThrow(DocumentsContract.Document.COLUMN_DOCUMENT_ID);
+                    while (cursor.moveToNext()) {
+                        String filename = SafUtil.getFileName(cursor);
+                        String path = FakePathFactory.buildChildFakePath(dir[0], filename);
+                        if (SafUtil.getFileType(cursor).equals("directory")) {
+                            if (!shouldIgnoreDirectory(filename, path)) {
+                                pending.add(new String[]{path, cursor.getString(idColumn)});
+                            }
+                        } else if (!shouldIgnoreFile(filename, path)) {
+                            long mtime = SafUtil.getFileLastModifiedTime(cursor);
+                            out.add(path, mtime, mtime, SafUtil.getFileSize(cursor), 0);
                         }
                     }
-                };
-                timer.start();
+                } catch (Exception e) {
+                    Log.e("FsWatcher", "unable to list " + dir[0] + ": " + e);
+                    return false;
+                }
             }
 
-            this.metaDb = newMetaDb;
+            return true;
         }
     }
 }
@@ -0,0 +1,301 @@
+package com.logseq.app;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.PluginCall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Decides which files of a graph are watched or listed, and which ones
+// have their content read. Rules are glob patterns relative to the root
+// of the graph, compiled once:
+//
+// - A pattern without "/" matches the name at any depth, a pattern with
+//   "/" matches the whole relative path. A leading "/" anchors a name to
+//   the root, e.g. "/assets/" doesn't match "pages/assets".
+// - "*" and "?" don't cross "/", "**" does.
+// - A pattern ending with "/" only matches directories. An exclude
+//   ending with "/**" also excludes the directory itself.
+//
+// Excluded directories are skipped with their whole subtree, before
+// they're listed. If there are include patterns, files must match one.
+public class IgnoreRules {
+    static private final String[] DEFAULT_EXCLUDES = {
+            ".*/", "bak/", "version-files/", "node_modules/",
+            "graphs-txid.edn", "broken-config.edn"};
+    static private final String[] DEFAULT_CONTENT_EXTENSIONS = {
+            "md", "org", "css", "edn", "js", "markdown", "excalidraw"};
+
+    static public final IgnoreRules DEFAULT = new IgnoreRules(
+            Collections.<String>emptyList(), Collections.<String>emptyList(),
+            Arrays.asList(DEFAULT_CONTENT_EXTENSIONS));
+
+    private final PatternSet mExcludedDirectories = new PatternSet();
+    private final PatternSet mExcludedFiles = new PatternSet();
+    // Null if all files are included.
+    private final PatternSet mIncludedFiles;
+    private final Set<String> mContentExtensions = new HashSet<>();
+    // As given, to tell whether two rules are the same.
+    private final List<String> mIncludes;
+    private final List<String> mExcludes;
+
+    // The default excludes always apply, the exclude patterns are added
+    // to them.
+    public IgnoreRules(List<String> includes, List<String> excludes,
+                       List<String> contentExtensions) {
+        mIncludes = new ArrayList<>(includes);
+        mExcludes = new ArrayList<>(excludes);
+        for (String glob : DEFAULT_EXCLUDES) {
+            addExclude(glob);
+        }
+        for (String glob : excludes) {
+            addExclude(glob);
+        }
+
+        if (includes.isEmpty()) {
+            mIncludedFiles = null;
+        } else {
+            mIncludedFiles = new PatternSet();
+            for (String glob : includes) {
+                mIncludedFiles.add(glob);
+            }
+            mIncludedFiles.compile();
+        }
+        mExcludedDirectories.compile();
+        mExcludedFiles.compile();
+
+        for (String extension : contentExtensions) {
+            mContentExtensions.add(extension.replaceFirst("^\\.", "")
+                    .toLowerCase(Locale.ROOT));
+        }
+    }
+
+    // Reads the `include`, `exclude` and `contentExtensions` options.
+    // Returns DEFAULT if none is given.
+    static public IgnoreRules fromCall(PluginCall call) {
+        JSArray includes = call.getArray("include");
+        JSArray excludes = call.getArray("exclude");
+        JSArray contentExtensions = call.getArray("contentExtensions");
+        if (includes == null && excludes == null
+                && contentExtensions == null) {
+            return DEFAULT;
+        }
+        return new IgnoreRules(toStrings(includes), toStrings(excludes),
+                contentExtensions == null
+                        ? Arrays.asList(DEFAULT_CONTENT_EXTENSIONS)
+                        : toStrings(contentExtensions));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof IgnoreRules)) {
+            return false;
+        }
+        IgnoreRules other = (IgnoreRules) o;
+        return mIncludes.equals(other.mIncludes)
+                && mExcludes.equals(other.mExcludes)
+                && mContentExtensions.equals(other.mContentExtensions);
+    }
+
+    @Override
+    public int hashCode() {
+        return (mIncludes.hashCode() * 31 + mExcludes.hashCode()) * 31
+                + mContentExtensions.hashCode();
+    }
+
+    static private List<String> toStrings(JSArray array) {
+        List<String> strings = new ArrayList<>();
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++) {
+                String string = array.optString(i, "");
+                if (!string.isEmpty()) {
+                    strings.add(string);
+                }
+            }
+        }
+        return strings;
+    }
+
+    // `path` is the full path of the directory and `relativeStart` the
+    // index where its part relative to the graph starts.
+    public boolean shouldIgnoreDirectory(String name, String path,
+                                         int relativeStart) {
+        return mExcludedDirectories.matches(name, path, relativeStart);
+    }
+
+    public boolean shouldIgnoreFile(String name, String path,
+                                    int relativeStart) {
+        if (mExcludedFiles.matches(name, path, relativeStart)) {
+            return true;
+        }
+        return mIncludedFiles != null
+                && !mIncludedFiles.matches(name, path, relativeStart);
+    }
+
+    // Whether the content of the file is sent along with its events.
+    public boolean shouldReadContent(String name) {
+        int dot = name.lastIndexOf('.');
+        if (name.startsWith(".") || dot < 0 || dot == name.length() - 1) {
+            // Hidden or without extension.
+            return false;
+        }
+        return mContentExtensions.contains(
+                name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private void addExclude(String glob) {
+        if (glob.endsWith("/**") && glob.length() > 3) {
+            // Prune the directory instead of visiting all its files. The
+            // pattern has a "/", so the directory is anchored too.
+            mExcludedDirectories.add("/" + glob.substring(0, glob.length() - 3));
+            mExcludedFiles.add(glob);
+        } else if (glob.endsWith("/")) {
+            mExcludedDirectories.add(glob.substring(0, glob.length() - 1));
+        } else {
+            mExcludedDirectories.add(glob);
+            mExcludedFiles.add(glob);
+        }
+    }
+
+    // Globs split by how cheaply they can be matched. Plain names and
+    // "*.ext" are checked without a regex, the others are merged into a
+    // single one.
+    static private class PatternSet {
+        private final Set<String> mNames = new HashSet<>();
+        // With the leading dot.
+        private final List<String> mExtensions = new ArrayList<>();
+        private final List<String> mNameRegexes = new ArrayList<>();
+        private final List<String> mPathRegexes = new ArrayList<>();
+        private Pattern mNamePattern;
+        private Pattern mPathPattern;
+        // Matchers are reset instead of allocated per file, one per
+        // scanning thread.
+        private final ThreadLocal<Matcher> mNameMatcher =
+                new ThreadLocal<Matcher>() {
+                    @Override
+                    protected Matcher initialValue() {
+                        return mNamePattern.matcher("");
+                    }
+                };
+        private final ThreadLocal<Matcher> mPathMatcher =
+                new ThreadLocal<Matcher>() {
+                    @Override
+                    protected Matcher initialValue() {
+                        return mPathPattern.matcher("");
+                    }
+                };
+
+        void add(String glob) {
+            boolean anchored = glob.startsWith("/");
+            glob = glob.replaceFirst("^/+", "");
+            if (glob.isEmpty()) {
+                return;
+            }
+            if (anchored || glob.contains("/")) {
+                mPathRegexes.add(globToRegex(glob));
+            } else if (!hasWildcard(glob)) {
+                mNames.add(glob);
+            } else if (glob.startsWith("*.")
+                    && !hasWildcard(glob.substring(2))) {
+                mExtensions.add(glob.substring(1));
+            } else {
+                mNameRegexes.add(globToRegex(glob));
+            }
+        }
+
+        void compile() {
+            mNamePattern = join(mNameRegexes);
+            mPathPattern = join(mPathRegexes);
+        }
+
+        boolean matches(String name, String path, int relativeStart) {
+            if (mNames.contains(name)) {
+                return true;
+            }
+            for (String extension : mExtensions) {
+                if (name.endsWith(extension)) {
+                    return true;
+                }
+            }
+            if (mNamePattern != null
+                    && mNameMatcher.get().reset(name).matches()) {
+                return true;
+            }
+            if (mPathPattern != null && relativeStart <= path.length()) {
+                Matcher matcher = mPathMatcher.get().reset(path);
+                matcher.region(relativeStart, path.length());
+                return matcher.matches();
+            }
+            return false;
+        }
+
+        static private Pattern join(List<String> regexes) {
+            if (regexes.isEmpty()) {
+                return null;
+            }
+            StringBuilder builder = new StringBuilder();
+            for (String regex : regexes) {
+                if (builder.length() > 0) {
+                    builder.append('|');
+                }
+                builder.append("(?:").append(regex).append(')');
+            }
+            return Pattern.compile(builder.toString());
+        }
+
+        static private boolean hasWildcard(String glob) {
+            return glob.contains("*") || glob.contains("?")
+                    || glob.contains("[");
+        }
+
+        static private String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*') {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length()
+                                && glob.charAt(i + 1) == '/') {
+                            // "**/" also matches no directory.
+                            i++;
+                            regex.append("(?:.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[') {
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        regex.append("\\[");
+                    } else {
+                        String set = glob.substring(i + 1, end);
+                        if (set.startsWith("!")) {
+                            set = "^" + set.substring(1);
+                        }
+                        regex.append('[').append(set.replace("\\", "\\\\"))
+                                .append(']');
+                        i = end;
+                    }
+                } else {
+                    if ("\\.^$|()+{}".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
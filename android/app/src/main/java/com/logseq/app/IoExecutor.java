@@ -0,0 +1,206 @@
+package com.logseq.app;
+
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The threads running the SafBasedFs calls instead of the plugin
+// thread, split in lanes so that quick calls never queue behind long
+// transfers:
+//
+// - metadata: read-only queries, e.g. stat, dirExists, listDir. They
+//   run on the bulk lane instead while a write is pending there, so
+//   they never overtake it.
+// - bulk: reads, writes and every call changing the tree. A single
+//   thread by default, so these calls run in the order they were made,
+//   as they did on the plugin thread.
+// - parallel: the per-file work of the batch calls, e.g. readFiles.
+//   Only bulk calls submit to it and wait for it, so it can't starve.
+// - background: prefetches, at background priority.
+//
+// Each lane measures its queue depth and the time tasks wait and run.
+public class IoExecutor {
+    static private final String TAG = "Logseq/IoExecutor";
+
+    static private final int DEFAULT_METADATA_THREADS = 2;
+    static private final int DEFAULT_BULK_THREADS = 1;
+    // Number of files read or written concurrently by the batch calls.
+    static private final int DEFAULT_PARALLEL_THREADS = 4;
+    static private final int MAX_THREADS = 16;
+    // Idle threads are stopped after this.
+    static private final long KEEP_ALIVE_SECONDS = 30;
+
+    public final Lane metadata =
+            new Lane("metadata", DEFAULT_METADATA_THREADS, false);
+    public final Lane bulk = new Lane("bulk", DEFAULT_BULK_THREADS, false);
+    public final Lane parallel =
+            new Lane("parallel", DEFAULT_PARALLEL_THREADS, false);
+    public final Lane background = new Lane("background", 1, true);
+
+    private final Lane[] mLanes = {metadata, bulk, parallel, background};
+
+    // Per lane stats, keyed by lane name.
+    public JSObject getStats(boolean reset) {
+        JSObject stats = new JSObject();
+        for (Lane lane : mLanes) {
+            stats.put(lane.mName, lane.getStats(reset));
+        }
+        return stats;
+    }
+
+    public void shutdownNow() {
+        for (Lane lane : mLanes) {
+            lane.mExecutor.shutdownNow();
+        }
+    }
+
+    static public class Lane {
+        private final String mName;
+        private final ThreadPoolExecutor mExecutor;
+        // Stats since the last reset. Times are in nanoseconds.
+        private long mCompleted = 0;
+        private long mFailed = 0;
+        private long mTotalWait = 0;
+        private long mMaxWait = 0;
+        private long mTotalRun = 0;
+        private long mMaxRun = 0;
+        private int mMaxQueued = 0;
+
+        Lane(String name, int threads, boolean lowPriority) {
+            mName = name;
+            AtomicInteger threadCount = new AtomicInteger();
+            mExecutor = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable ->
+                    new Thread(() -> {
+                        if (lowPriority) {
+                            Process.setThreadPriority(
+                                    Process.THREAD_PRIORITY_BACKGROUND);
+                        }
+                        runnable.run();
+                    }, "SafBasedFs-" + name + "-" + threadCount.incrementAndGet()));
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        public synchronized void setThreads(int threads) {
+            threads = Math.max(1, Math.min(MAX_THREADS, threads));
+            // The core size must never exceed the maximum one.
+            if (threads > mExecutor.getMaximumPoolSize()) {
+                mExecutor.setMaximumPoolSize(threads);
+                mExecutor.setCorePoolSize(threads);
+            } else {
+                mExecutor.setCorePoolSize(threads);
+                mExecutor.setMaximumPoolSize(threads);
+            }
+        }
+
+        // Runs a plugin call, rejecting it if it throws.
+        public void execute(PluginCall call, Runnable task) {
+            execute(task, call);
+        }
+
+        public void execute(Runnable task) {
+            execute(task, null);
+        }
+
+        private void execute(Runnable task, @Nullable PluginCall call) {
+            long queuedAt = System.nanoTime();
+            mExecutor.execute(() -> {
+                long startedAt = System.nanoTime();
+                boolean failed = false;
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // Would kill the app on a pool thread.
+                    Log.e(TAG, mName + " task failed: " + e);
+                    failed = true;
+                    if (call != null) {
+                        call.reject("unexpected error: " + e, e);
+                    }
+                }
+                record(startedAt - queuedAt, System.nanoTime() - startedAt,
+                        failed);
+            });
+            synchronized (this) {
+                mMaxQueued = Math.max(mMaxQueued, mExecutor.getQueue().size());
+            }
+        }
+
+        public <T> Future<T> submit(Callable<T> callable) {
+            return submit(new FutureTask<>(callable));
+        }
+
+        public Future<?> submit(Runnable task) {
+            return submit(new FutureTask<Void>(task, null));
+        }
+
+        private <T> Future<T> submit(FutureTask<T> future) {
+            execute(() -> {
+                future.run();
+                // The future keeps what the task threw for its caller,
+                // rethrow it so that the lane counts the failure.
+                if (future.isCancelled()) {
+                    return;
+                }
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, null);
+            return future;
+        }
+
+        private synchronized void record(long wait, long run, boolean failed) {
+            mCompleted++;
+            if (failed) {
+                mFailed++;
+            }
+            mTotalWait += wait;
+            mMaxWait = Math.max(mMaxWait, wait);
+            mTotalRun += run;
+            mMaxRun = Math.max(mMaxRun, run);
+        }
+
+        private synchronized JSObject getStats(boolean reset) {
+            JSObject stats = new JSObject();
+            stats.put("threads", mExecutor.getMaximumPoolSize());
+            stats.put("active", mExecutor.getActiveCount());
+            stats.put("queued", mExecutor.getQueue().size());
+            stats.put("maxQueued", mMaxQueued);
+            stats.put("completed", mCompleted);
+            stats.put("failed", mFailed);
+            stats.put("avgWaitMs", mCompleted == 0 ? 0 :
+                    mTotalWait / mCompleted / 1000000.0);
+            stats.put("maxWaitMs", mMaxWait / 1000000.0);
+            stats.put("avgRunMs", mCompleted == 0 ? 0 :
+                    mTotalRun / mCompleted / 1000000.0);
+            stats.put("maxRunMs", mMaxRun / 1000000.0);
+            if (reset) {
+                mCompleted = 0;
+                mFailed = 0;
+                mTotalWait = 0;
+                mMaxWait = 0;
+                mTotalRun = 0;
+                mMaxRun = 0;
+                mMaxQueued = 0;
+            }
+            return stats;
+        }
+    }
+}
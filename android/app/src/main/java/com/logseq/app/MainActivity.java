@@ -5,6 +5,7 @@ import android.os.Bundle;
 import android.webkit.ValueCallback;
 
 import com.getcapacitor.BridgeActivity;
+import com.getcapacitor.PluginHandle;
 
 import java.util.Timer;
 import java.util.TimerTask;
@@ -37,6 +38,24 @@ public class MainActivity extends BridgeActivity {
         super.onPause();
     }
 
+    @Override
+    public void onUserInteraction() {
+        super.onUserInteraction();
+        PluginHandle handle = bridge != null ? bridge.getPlugin("FsWatcher") : null;
+        if (handle != null) {
+            ((FsWatcher) handle.getInstance()).onUserInteraction();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        PluginHandle handle = bridge != null ? bridge.getPlugin("SafBasedFs") : null;
+        if (handle != null) {
+            ((SafBasedFs) handle.getInstance()).onTrimMemory(level);
+        }
+    }
+
     @Override
     protected void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
@@ -1,12 +1,17 @@
 package com.logseq.app;
 
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.DocumentsContract;
+import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.getcapacitor.Bridge;
 import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
@@ -14,11 +19,26 @@ import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 
 // The SafBasedFs provides SAF based filesystem APIs
@@ -27,8 +47,88 @@ import java.util.Arrays;
 public class SafBasedFs extends Plugin {
     static private final String TAG = "Logseq/FsUtil";
 
+    // Total size of the file contents kept in memory for readFile.
+    static private final long CONTENT_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+    // Number of the most recently modified journals prefetched by
+    // default.
+    static private final int DEFAULT_PREFETCH_JOURNALS = 7;
+
+    // Results of writeFileTo().
+    static private final int WRITE_DONE = 0;
+    static private final int WRITE_UNCHANGED = 1;
+    static private final int WRITE_CREATE_FAILED = 2;
+
+    // Runs the calls off the plugin thread, see IoExecutor for the lane
+    // of each call.
+    private IoExecutor mIo;
+    private DigestCache mDigestCache;
+    // Persistent folder listings, by tree root fake path.
+    private final HashMap<String, SafTreeIndex> mTreeIndexes = new HashMap<>();
+    private final ContentCache mContentCache =
+            new ContentCache(CONTENT_CACHE_MAX_BYTES);
+    // Bumped by each prefetch, so that the prefetch of a previous
+    // graph stops early.
+    private final AtomicInteger mPrefetchGeneration = new AtomicInteger();
+    // Calls changing the tree which are queued or running on the bulk
+    // lane, see executeQuery().
+    private final AtomicInteger mPendingWrites = new AtomicInteger();
+
+    @Override
+    public void load() {
+        mIo = new IoExecutor();
+        mDigestCache = new DigestCache(new File(
+                getContext().getNoBackupFilesDir(), "saf-digests.cache"));
+    }
+
+    @Override
+    protected void handleOnPause() {
+        saveTreeIndexes();
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        saveTreeIndexes();
+        mIo.shutdownNow();
+        mContentCache.clear();
+    }
+
+    // Called by the MainActivity, the prefetched contents are the first
+    // to go under memory pressure.
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mContentCache.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mContentCache.trimToSize(CONTENT_CACHE_MAX_BYTES / 2);
+        }
+    }
+
+    // Runs a call changing the tree on the bulk lane.
+    private void executeWrite(PluginCall call, Runnable task) {
+        mPendingWrites.incrementAndGet();
+        mIo.bulk.execute(call, () -> {
+            try {
+                task.run();
+            } finally {
+                mPendingWrites.decrementAndGet();
+            }
+        });
+    }
+
+    // Runs a metadata query on the metadata lane, or behind the pending
+    // writes on the bulk lane if there are any, so that a query never
+    // sees the tree as it was before a write made earlier. Calls reach
+    // the plugin one at a time, so no write can be made in between.
+    private void executeQuery(PluginCall call, Runnable task) {
+        (mPendingWrites.get() > 0 ? mIo.bulk : mIo.metadata).execute(call,
+                task);
+    }
+
     @PluginMethod()
     public void dirExists(PluginCall call) {
+        executeQuery(call, () -> dirExistsCall(call));
+    }
+
+    private void dirExistsCall(PluginCall call) {
         if (call == null) {
             return;
         }
@@ -49,13 +149,11 @@ public class SafBasedFs extends Plugin {
             return;
         }
 
-        String mimeType = null;
-        try (Cursor cursor = getActivity().getContentResolver().query(uri,
-                new String[]{DocumentsContract.Document.COLUMN_MIME_TYPE}, null,
-                null, null)) {
-            if (cursor != null && cursor.moveToFirst()) {
-                mimeType = cursor.getString(cursor.getColumnIndexOrThrow(
-                        DocumentsContract.Document.COLUMN_MIME_TYPE));
+        String mimeType = queryMimeType(uri);
+        if (mimeType == null) {
+            Uri retryUri = resolveAgain(path, uri);
+            if (retryUri != null) {
+                mimeType = queryMimeType(retryUri);
             }
         }
         Log.d(TAG, "mimeType: " + mimeType);
@@ -65,8 +163,27 @@ public class SafBasedFs extends Plugin {
         call.resolve(ret);
     }
 
+    @Nullable
+    private String queryMimeType(Uri uri) {
+        try (Cursor cursor = getActivity().getContentResolver().query(uri,
+                new String[]{DocumentsContract.Document.COLUMN_MIME_TYPE}, null,
+                null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getString(cursor.getColumnIndexOrThrow(
+                        DocumentsContract.Document.COLUMN_MIME_TYPE));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "unable to query " + uri + ": " + e);
+        }
+        return null;
+    }
+
     @PluginMethod()
     public void stat(PluginCall call) {
+        executeQuery(call, () -> statCall(call));
+    }
+
+    private void statCall(PluginCall call) {
         if (call == null) {
             return;
         }
@@ -80,28 +197,37 @@ public class SafBasedFs extends Plugin {
             return;
         }
 
-        JSObject ret = new JSObject();
-        try (Cursor cursor = getActivity().getContentResolver().query(uri,
-                SafUtil.statColumns(), null,
-                null, null)) {
-            if (cursor == null || !cursor.moveToFirst()) {
-                call.reject("unable to query uri");
-                return;
+        ContentResolver contentResolver = getContext().getContentResolver();
+        SafUtil.DocumentStat stat =
+                SafUtil.queryDocumentStat(uri, contentResolver);
+        if (stat == null) {
+            Uri retryUri = resolveAgain(fakePath, uri);
+            if (retryUri != null) {
+                stat = SafUtil.queryDocumentStat(retryUri, contentResolver);
             }
-
-            ret.put("size", SafUtil.getFileSize(cursor));
-            ret.put("type", SafUtil.getFileType(cursor));
-            ret.put("mtime", SafUtil.getFileLastModifiedTime(cursor));
-            ret.put("uri", fakePath);
-            ret.put("ctime", null);
-            call.resolve(ret);
-        } catch (Exception e) {
-            call.reject("failed to query uri, exception:" + e);
         }
+        if (stat == null) {
+            call.reject("unable to query uri");
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("size", stat.size);
+        ret.put("type", stat.isDirectory() ? "directory" : "file");
+        ret.put("mtime", stat.lastModified);
+        ret.put("uri", fakePath);
+        ret.put("ctime", null);
+        call.resolve(ret);
     }
 
+    // With `cached`, the listing may come from the SafTreeIndex if the
+    // folder didn't change since, see there for what may be stale.
     @PluginMethod()
     public void listDir(PluginCall call) {
+        executeQuery(call, () -> listDirCall(call));
+    }
+
+    private void listDirCall(PluginCall call) {
         if (call == null) {
             return;
         }
@@ -110,47 +236,144 @@ public class SafBasedFs extends Plugin {
         Log.d(TAG, "invoking listDir, path=" + fakePath);
         Uri uri = FakePathFactory.fakePathToUri(fakePath,
                 getContext().getContentResolver());
-        if (uri == null) {
+        SafTreeIndex index = uri == null ? null : getTreeIndex(fakePath);
+        if (index == null) {
             call.reject("invalid path");
             return;
         }
 
+        boolean cached = Boolean.TRUE.equals(call.getBoolean("cached", false));
+        SafTreeIndex.Listing listing = index.list(fakePath, uri, -1, cached,
+                getContext().getContentResolver());
+        if (listing == null) {
+            FakePathFactory.invalidateCache(fakePath);
+            call.reject("unable to query the given uri");
+            return;
+        }
+
         JSArray fileArray = new JSArray();
-        Uri folderUri = DocumentsContract.buildChildDocumentsUriUsingTree(uri,
-                DocumentsContract.getDocumentId(uri));
-        try (Cursor cursor = getActivity().getContentResolver().query(folderUri,
-                SafUtil.statColumns(), null, null, null)) {
-            if (cursor == null) {
-                call.reject("unable to query the given uri");
-                return;
+        for (SafTreeIndex.Child child : listing.children) {
+            fileArray.put(toFileObject(child,
+                    FakePathFactory.buildChildFakePath(fakePath, child.name)));
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("files", fileArray);
+        call.resolve(ret);
+    }
+
+    // Lists the whole tree under the given path breadth first, skipping
+    // the folders and files ignored by the FsWatcher. Children are
+    // visited by the document ids from their parent's listing, so no
+    // path is resolved by name. With `cached`, unchanged folders are
+    // taken from the SafTreeIndex, e.g. when opening a graph again.
+    @PluginMethod()
+    public void listTree(PluginCall call) {
+        mIo.bulk.execute(call, () -> listTreeCall(call));
+    }
+
+    private void listTreeCall(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        String fakePath = call.getString("path");
+        Log.d(TAG, "invoking listTree, path=" + fakePath);
+        Uri uri = FakePathFactory.fakePathToUri(fakePath,
+                getContext().getContentResolver());
+        SafTreeIndex index = uri == null ? null : getTreeIndex(fakePath);
+        if (index == null) {
+            call.reject("invalid path");
+            return;
+        }
+
+        // Same options as the watcher, see IgnoreRules.
+        IgnoreRules rules = IgnoreRules.fromCall(call);
+        boolean cached = Boolean.TRUE.equals(call.getBoolean("cached", false));
+        int relativeStart = fakePath.length()
+                + (fakePath.endsWith("/") ? 0 : 1);
+
+        JSArray fileArray = new JSArray();
+        ArrayDeque<PendingFolder> pending = new ArrayDeque<>();
+        pending.add(new PendingFolder(fakePath, uri, -1));
+        int listed = 0;
+        while (!pending.isEmpty()) {
+            PendingFolder dir = pending.poll();
+            SafTreeIndex.Listing listing = index.list(dir.fakePath, dir.uri,
+                    dir.lastModified, cached,
+                    getContext().getContentResolver());
+            if (listing == null) {
+                if (dir.fakePath.equals(fakePath)) {
+                    call.reject("unable to list directory");
+                    return;
+                }
+                continue;
+            }
+            if (listing.fresh) {
+                listed++;
             }
 
-            if (cursor.moveToFirst()) {
-                do {
-                    JSObject file = new JSObject();
-                    file.put("name", SafUtil.getFileName(cursor));
-                    file.put("type", SafUtil.getFileType(cursor));
-                    file.put("size", SafUtil.getFileSize(cursor));
-                    file.put("mtime", SafUtil.getFileLastModifiedTime(cursor));
-                    file.put("uri",
-                            FakePathFactory.buildChildFakePath(fakePath,
-                                    SafUtil.getFileName(cursor)));
-                    file.put("ctime", null);
-                    fileArray.put(file);
-                } while (cursor.moveToNext());
+            for (SafTreeIndex.Child child : listing.children) {
+                String childFakePath = FakePathFactory.buildChildFakePath(
+                        dir.fakePath, child.name);
+                if (child.isDirectory()) {
+                    if (rules.shouldIgnoreDirectory(child.name,
+                            childFakePath, relativeStart)) {
+                        continue;
+                    }
+                    Uri childUri = DocumentsContract.buildDocumentUriUsingTree(
+                            uri, child.documentId);
+                    // A fresh listing carries the current last modified
+                    // time of the child folders, saving their query.
+                    pending.add(new PendingFolder(childFakePath, childUri,
+                            listing.fresh ? child.lastModified : -1));
+                    FakePathFactory.cacheUri(childFakePath, childUri);
+                } else if (rules.shouldIgnoreFile(child.name, childFakePath,
+                        relativeStart)) {
+                    continue;
+                }
+                fileArray.put(toFileObject(child, childFakePath));
             }
-        } catch (Exception e) {
-            call.reject("unable to list directory, exception:" + e);
-            return;
         }
+        Log.d(TAG, "listTree listed " + listed + " folders");
+        index.save();
 
         JSObject ret = new JSObject();
         ret.put("files", fileArray);
         call.resolve(ret);
     }
 
+    static private class PendingFolder {
+        final String fakePath;
+        final Uri uri;
+        // -1 if unknown.
+        final long lastModified;
+
+        PendingFolder(String fakePath, Uri uri, long lastModified) {
+            this.fakePath = fakePath;
+            this.uri = uri;
+            this.lastModified = lastModified;
+        }
+    }
+
+    static private JSObject toFileObject(SafTreeIndex.Child child,
+                                         String fakePath) {
+        JSObject file = new JSObject();
+        file.put("name", child.name);
+        file.put("type", child.isDirectory() ? "directory" : "file");
+        file.put("size", child.size);
+        file.put("mtime", child.lastModified);
+        file.put("uri", fakePath);
+        file.put("ctime", null);
+        return file;
+    }
+
     @PluginMethod
     public void readFile(PluginCall call) {
+        mIo.bulk.execute(call, () -> readFileCall(call));
+    }
+
+    private void readFileCall(PluginCall call) {
         if (call == null) {
             return;
         }
@@ -171,20 +394,471 @@ public class SafBasedFs extends Plugin {
             return;
         }
 
+        // Prefetched contents are checked against the document's stat,
+        // which is still cheaper than opening and reading it.
+        if (mContentCache.contains(path)) {
+            SafUtil.DocumentStat stat = SafUtil.queryDocumentStat(uri,
+                    getContext().getContentResolver());
+            byte[] data = stat == null ? null :
+                    mContentCache.get(path, stat.size, stat.lastModified);
+            if (data != null) {
+                JSObject ret = new JSObject();
+                ret.put("data", SafUtil.decodeData(data, charset));
+                call.resolve(ret);
+                return;
+            }
+        }
+
         try {
             JSObject ret = new JSObject();
-            ret.put("data", SafUtil.readFile(uri, charset,
-                    getContext().getContentResolver()));
+            ret.put("data", SafUtil.decodeData(readDocument(path, uri),
+                    charset));
             call.resolve(ret);
         } catch (FileNotFoundException e) {
+            mContentCache.invalidate(path);
             call.reject("file does not exist", e);
         } catch (IOException e) {
             call.reject("error occurred while reading file", e);
         }
     }
 
+    // Reads `length` bytes of the file from `offset` as base64 encoded
+    // data, so that large files can be read in bounded chunks. Chunks
+    // are limited to `SafUtil.MAX_RANGE_LENGTH` bytes.
+    @PluginMethod
+    public void readFileRange(PluginCall call) {
+        mIo.bulk.execute(call, () -> readFileRangeCall(call));
+    }
+
+    private void readFileRangeCall(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        String path = call.getString("path");
+        Log.d(TAG, "invoking readFileRange, path=" + path);
+        Uri uri = FakePathFactory.fakePathToUri(path,
+                getContext().getContentResolver());
+        if (uri == null) {
+            call.reject("invalid path");
+            return;
+        }
+
+        long offset = call.getLong("offset", 0L);
+        int length = call.getInt("length", SafUtil.MAX_RANGE_LENGTH);
+        try {
+            SafUtil.FileRange range;
+            try {
+                range = SafUtil.readFileRange(uri, offset, length,
+                        getContext().getContentResolver());
+            } catch (FileNotFoundException e) {
+                Uri retryUri = resolveAgain(path, uri);
+                if (retryUri == null) {
+                    throw e;
+                }
+                range = SafUtil.readFileRange(retryUri, offset, length,
+                        getContext().getContentResolver());
+            }
+            JSObject ret = new JSObject();
+            ret.put("data", Base64.encodeToString(range.data,
+                    Base64.NO_WRAP));
+            ret.put("bytesRead", range.data.length);
+            ret.put("size", range.size);
+            ret.put("eof", range.eof);
+            call.resolve(ret);
+        } catch (FileNotFoundException e) {
+            call.reject("file does not exist", e);
+        } catch (IOException e) {
+            call.reject("error occurred while reading file", e);
+        }
+    }
+
+    // Reads multiple files in one bridge round trip. The results are
+    // returned in the order of the given paths, either all at once or,
+    // when `chunkSize` is given, as `readFilesChunk` events followed by
+    // the resolution of the call.
+    @PluginMethod
+    public void readFiles(PluginCall call) {
+        mIo.bulk.execute(call, () -> readFilesCall(call));
+    }
+
+    private void readFilesCall(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        JSArray pathArray = call.getArray("paths");
+        if (pathArray == null) {
+            call.reject("missing argument paths");
+            return;
+        }
+        List<String> paths;
+        try {
+            paths = pathArray.toList();
+        } catch (JSONException e) {
+            call.reject("invalid argument paths", e);
+            return;
+        }
+        Log.d(TAG, "invoking readFiles, count=" + paths.size());
+
+        String encoding = call.getString("encoding");
+        Charset charset = toCharset(encoding);
+        if (encoding != null && charset == null) {
+            call.reject("unsupported encoding provided: " + encoding);
+            return;
+        }
+        int chunkSize = call.getInt("chunkSize", 0);
+
+        // Paths are resolved here, folder by folder, so that each folder
+        // is listed once into its child index before the reads run
+        // concurrently.
+        ContentResolver contentResolver = getContext().getContentResolver();
+        Uri[] uris = new Uri[paths.size()];
+        for (Map.Entry<String, List<Integer>> folder :
+                groupByFolder(paths).entrySet()) {
+            Uri folderUri = FakePathFactory.fakePathToUri(folder.getKey(),
+                    contentResolver);
+            if (folderUri == null) {
+                continue;
+            }
+            for (int i : folder.getValue()) {
+                String path = paths.get(i);
+                Uri uri = FakePathFactory.getCachedUri(path);
+                if (uri == null) {
+                    uri = FakePathFactory.queryChildUri(folder.getKey(),
+                            folderUri, path.substring(path.lastIndexOf('/') + 1),
+                            contentResolver);
+                    FakePathFactory.cacheUri(path, uri);
+                }
+                uris[i] = uri;
+            }
+        }
+
+        List<Future<JSObject>> results = new ArrayList<>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            Uri uri = uris[i];
+            results.add(mIo.parallel.submit(() ->
+                    readFileEntry(path, uri, charset)));
+        }
+
+        JSArray fileArray = new JSArray();
+        try {
+            for (Future<JSObject> result : results) {
+                fileArray.put(result.get());
+                if (chunkSize > 0 && fileArray.length() == chunkSize) {
+                    JSObject chunk = new JSObject();
+                    chunk.put("files", fileArray);
+                    notifyListeners("readFilesChunk", chunk);
+                    fileArray = new JSArray();
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            for (Future<JSObject> result : results) {
+                result.cancel(true);
+            }
+            call.reject("error occurred while reading files", e);
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        if (chunkSize > 0) {
+            if (fileArray.length() > 0) {
+                JSObject chunk = new JSObject();
+                chunk.put("files", fileArray);
+                notifyListeners("readFilesChunk", chunk);
+            }
+            ret.put("count", paths.size());
+        } else {
+            ret.put("files", fileArray);
+        }
+        call.resolve(ret);
+    }
+
+    private JSObject readFileEntry(String path, @Nullable Uri uri,
+                                   Charset charset) {
+        JSObject file = new JSObject();
+        file.put("path", path);
+        if (uri == null) {
+            file.put("error", "invalid path");
+            return file;
+        }
+
+        try {
+            file.put("data", SafUtil.decodeData(readDocument(path, uri),
+                    charset));
+        } catch (FileNotFoundException e) {
+            file.put("error", "file does not exist");
+        } catch (IOException e) {
+            file.put("error", "error occurred while reading file: " + e);
+        }
+        return file;
+    }
+
+    // Computes content digests natively, so the frontend only reads the
+    // files whose digests changed. Each folder is listed once for the
+    // size and last modified time of its files, and files which didn't
+    // change since they were last hashed aren't read. Resolves {files}
+    // with a {path, hash, size, mtime} or {path, error} result per path,
+    // in the given order. `hash` is the hex CRC32 of the content, the
+    // same as in the watcher events.
+    @PluginMethod
+    public void hashFiles(PluginCall call) {
+        mIo.bulk.execute(call, () -> hashFilesCall(call));
+    }
+
+    private void hashFilesCall(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        JSArray pathArray = call.getArray("paths");
+        if (pathArray == null) {
+            call.reject("missing argument paths");
+            return;
+        }
+        List<String> paths;
+        try {
+            paths = pathArray.toList();
+        } catch (JSONException e) {
+            call.reject("invalid argument paths", e);
+            return;
+        }
+        Log.d(TAG, "invoking hashFiles, count=" + paths.size());
+        ContentResolver contentResolver = getContext().getContentResolver();
+
+        JSObject[] results = new JSObject[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            results[i] = new JSObject();
+            results[i].put("path", path);
+            if (path.lastIndexOf('/') < 0) {
+                results[i].put("error", "invalid path");
+            }
+        }
+
+        List<Future<?>> hashes = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> folder :
+                groupByFolder(paths).entrySet()) {
+            Uri folderUri = FakePathFactory.fakePathToUri(folder.getKey(),
+                    contentResolver);
+            Map<String, SafUtil.DocumentStat> children = folderUri == null
+                    ? null : SafUtil.queryChildStats(folderUri, contentResolver);
+            for (int i : folder.getValue()) {
+                JSObject result = results[i];
+                String path = paths.get(i);
+                SafUtil.DocumentStat stat = children == null ? null
+                        : children.get(path.substring(path.lastIndexOf('/') + 1));
+                if (stat == null || stat.isDirectory()) {
+                    FakePathFactory.invalidateCache(path);
+                    result.put("error", "file does not exist");
+                    continue;
+                }
+
+                Uri uri = DocumentsContract.buildDocumentUriUsingTree(
+                        folderUri, stat.documentId);
+                FakePathFactory.cacheUri(path, uri);
+                result.put("size", stat.size);
+                result.put("mtime", stat.lastModified);
+                String key = DigestCache.key(uri.getAuthority(),
+                        stat.documentId);
+                long digest = mDigestCache.get(key, stat.size,
+                        stat.lastModified);
+                if (digest != DigestCache.NO_DIGEST) {
+                    result.put("hash", ContentHasher.toHex(digest));
+                    continue;
+                }
+
+                hashes.add(mIo.parallel.submit(() -> {
+                    try (InputStream is = contentResolver.openInputStream(uri)) {
+                        if (is == null) {
+                            throw new FileNotFoundException(path);
+                        }
+                        long crc = ContentHasher.crc32(is);
+                        mDigestCache.put(key, stat.size, stat.lastModified, crc);
+                        result.put("hash", ContentHasher.toHex(crc));
+                    } catch (FileNotFoundException e) {
+                        FakePathFactory.invalidateCache(path);
+                        result.put("error", "file does not exist");
+                    } catch (IOException e) {
+                        result.put("error",
+                                "error occurred while reading file: " + e);
+                    }
+                }));
+            }
+        }
+
+        try {
+            for (Future<?> hash : hashes) {
+                hash.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            for (Future<?> hash : hashes) {
+                hash.cancel(true);
+            }
+            call.reject("error occurred while hashing files", e);
+            return;
+        }
+        mDigestCache.save();
+
+        JSArray fileArray = new JSArray();
+        for (JSObject result : results) {
+            fileArray.put(result);
+        }
+        JSObject ret = new JSObject();
+        ret.put("files", fileArray);
+        call.resolve(ret);
+    }
+
+    // Warms the content cache of readFile after a graph is opened: the
+    // `journals` most recently modified files of the journals folder of
+    // the graph at `path`, then the files of the `paths` hot list, e.g.
+    // the favorite pages. Resolves once queued, a later prefetch stops
+    // this one.
+    @PluginMethod
+    public void prefetch(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        String path = call.getString("path");
+        Log.d(TAG, "invoking prefetch, path=" + path);
+        if (path == null) {
+            call.reject("missing argument path");
+            return;
+        }
+        int journalCount = call.getInt("journals", DEFAULT_PREFETCH_JOURNALS);
+        List<String> paths = new ArrayList<>();
+        JSArray pathArray = call.getArray("paths");
+        if (pathArray != null) {
+            for (int i = 0; i < pathArray.length(); i++) {
+                String hotPath = pathArray.optString(i, "");
+                if (!hotPath.isEmpty()) {
+                    paths.add(hotPath);
+                }
+            }
+        }
+
+        int generation = mPrefetchGeneration.incrementAndGet();
+        mIo.background.execute(() ->
+                prefetchImpl(path, journalCount, paths, generation));
+        call.resolve();
+    }
+
+    private void prefetchImpl(String graphPath, int journalCount,
+                              List<String> paths, int generation) {
+        ContentResolver contentResolver = getContext().getContentResolver();
+        String journalsPath = FakePathFactory.buildChildFakePath(
+                graphPath.replaceAll("/+$", ""), "journals");
+        Uri journalsUri = FakePathFactory.fakePathToUri(journalsPath,
+                contentResolver);
+        SafTreeIndex index = getTreeIndex(journalsPath);
+        if (journalCount > 0 && journalsUri != null && index != null) {
+            SafTreeIndex.Listing listing = index.list(journalsPath,
+                    journalsUri, -1, false, contentResolver);
+            List<SafTreeIndex.Child> journals = new ArrayList<>();
+            if (listing != null) {
+                for (SafTreeIndex.Child child : listing.children) {
+                    if (!child.isDirectory() &&
+                            IgnoreRules.DEFAULT.shouldReadContent(child.name)) {
+                        journals.add(child);
+                    }
+                }
+            }
+            Collections.sort(journals, (a, b) ->
+                    Long.compare(b.lastModified, a.lastModified));
+            for (SafTreeIndex.Child journal :
+                    journals.subList(0, Math.min(journalCount, journals.size()))) {
+                String journalPath = FakePathFactory.buildChildFakePath(
+                        journalsPath, journal.name);
+                Uri journalUri = DocumentsContract.buildDocumentUriUsingTree(
+                        journalsUri, journal.documentId);
+                FakePathFactory.cacheUri(journalPath, journalUri);
+                if (!prefetchFile(journalPath, journalUri, journal.size,
+                        journal.lastModified, generation)) {
+                    return;
+                }
+            }
+        }
+
+        for (String path : paths) {
+            Uri uri = FakePathFactory.fakePathToUri(path, contentResolver);
+            SafUtil.DocumentStat stat = uri == null ? null :
+                    SafUtil.queryDocumentStat(uri, contentResolver);
+            if (stat == null || stat.isDirectory()) {
+                continue;
+            }
+            if (!prefetchFile(path, uri, stat.size, stat.lastModified,
+                    generation)) {
+                return;
+            }
+        }
+    }
+
+    // Returns false if the prefetch was superseded.
+    private boolean prefetchFile(String fakePath, Uri uri, long size,
+                                 long lastModified, int generation) {
+        if (generation != mPrefetchGeneration.get()) {
+            return false;
+        }
+        if (mContentCache.get(fakePath, size, lastModified) != null) {
+            return true;
+        }
+        try {
+            mContentCache.put(fakePath, SafUtil.readFileBytes(uri,
+                    getContext().getContentResolver()), size, lastModified);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to prefetch " + fakePath + ": " + e);
+        }
+        return true;
+    }
+
+    // Per lane queue depth, call counts and latencies of the calls, see
+    // IoExecutor. With `reset`, the counters restart from zero.
+    @PluginMethod
+    public void ioStats(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("lanes", mIo.getStats(
+                Boolean.TRUE.equals(call.getBoolean("reset", false))));
+        call.resolve(ret);
+    }
+
+    // Sets the number of threads of the lanes given as
+    // `metadataThreads`, `bulkThreads` and `parallelThreads`. More than
+    // one bulk thread lets reads and writes run out of order.
+    @PluginMethod
+    public void configureIo(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        Integer metadataThreads = call.getInt("metadataThreads");
+        Integer bulkThreads = call.getInt("bulkThreads");
+        Integer parallelThreads = call.getInt("parallelThreads");
+        Log.d(TAG, "invoking configureIo, metadata=" + metadataThreads
+                + " bulk=" + bulkThreads + " parallel=" + parallelThreads);
+        if (metadataThreads != null) {
+            mIo.metadata.setThreads(metadataThreads);
+        }
+        if (bulkThreads != null) {
+            mIo.bulk.setThreads(bulkThreads);
+        }
+        if (parallelThreads != null) {
+            mIo.parallel.setThreads(parallelThreads);
+        }
+        call.resolve();
+    }
+
     @PluginMethod
     public void mkdir(PluginCall call) {
+        executeWrite(call, () -> mkdirCall(call));
+    }
+
+    private void mkdirCall(PluginCall call) {
         if (call == null) {
             return;
         }
@@ -207,6 +881,10 @@ public class SafBasedFs extends Plugin {
 
     @PluginMethod
     public void writeFile(PluginCall call) {
+        executeWrite(call, () -> writeFileCall(call));
+    }
+
+    private void writeFileCall(PluginCall call) {
         if (call == null) {
             return;
         }
@@ -215,13 +893,19 @@ public class SafBasedFs extends Plugin {
         Log.d(TAG, "invoking writeFile, path=" + fakePath);
         String encoding = call.getString("encoding");
         String data = call.getString("data");
+        // Binary assets already on the device, e.g. shared or picked
+        // files, are copied natively instead of going through base64.
+        // Bytes produced by the WebView still come as base64 `data`:
+        // the local server only sees request urls, never bodies, so
+        // there's no url to upload them to.
+        String sourceUri = call.getString("sourceUri");
         Boolean recursive = call.getBoolean("recursive", false);
         if (fakePath == null) {
             Log.d(TAG, "missing argument path");
             call.reject("missing argument path");
             return;
         }
-        if (data == null) {
+        if (data == null && sourceUri == null) {
             Log.d(TAG, "missing argument data");
             call.reject("missing argument data");
             return;
@@ -233,30 +917,282 @@ public class SafBasedFs extends Plugin {
             call.reject("unsupported encoding provided: " + encoding);
             return;
         }
+        // Atomic writes replace the content in place, truncating and
+        // writing in one open, and are synced to the storage before the
+        // call resolves. They skip unchanged content by default. A
+        // crash during the write can still leave a truncated file.
+        boolean atomic = Boolean.TRUE.equals(call.getBoolean("atomic", false));
+        boolean skipUnchanged = Boolean.TRUE.equals(
+                call.getBoolean("skipUnchanged", atomic));
 
-        Uri fileUri =
-                ensureFileExists(fakePath, Boolean.TRUE.equals(recursive));
-        Log.d(TAG, "uri=" + fileUri);
-        if (fileUri == null) {
-            Log.e(TAG, "failed to create file");
-            call.reject("failed to create file");
-            return;
+        byte[] bytes = null;
+        if (sourceUri == null) {
+            try {
+                bytes = SafUtil.encodeData(data, charset);
+            } catch (IllegalArgumentException e) {
+                call.reject("invalid base64 data", e);
+                return;
+            }
         }
+
         try {
-            SafUtil.writeFile(fileUri, data, charset,
-                    getContext().getContentResolver());
+            int status = writeFileTo(fakePath, null, null, bytes, sourceUri,
+                    Boolean.TRUE.equals(recursive), atomic, skipUnchanged);
+            if (status == WRITE_CREATE_FAILED) {
+                Log.e(TAG, "failed to create file");
+                call.reject("failed to create file");
+                return;
+            }
+            if (status == WRITE_DONE) {
+                invalidateIndexedParent(fakePath);
+                mContentCache.invalidate(fakePath);
+            }
             JSObject result = new JSObject();
             result.put("uri", fakePath);
+            result.put("written", status == WRITE_DONE);
             call.resolve(result);
         } catch (FileNotFoundException e) {
+            FakePathFactory.invalidateCache(fakePath);
             call.reject("file does not exist", e);
         } catch (IOException e) {
             call.reject("error occurred while writing to file", e);
         }
     }
 
+    // Writes many files in one bridge round trip, e.g. the pages whose
+    // references changed after a page rename. `files` holds
+    // {path, data, encoding?} objects, the other options are those of
+    // writeFile. Files are grouped by folder, each folder is resolved
+    // once and its files are written concurrently. Resolves {files}
+    // with a {path, uri, written} or {path, error} result per file, in
+    // the given order.
+    @PluginMethod
+    public void writeFiles(PluginCall call) {
+        executeWrite(call, () -> writeFilesCall(call));
+    }
+
+    private void writeFilesCall(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        JSArray fileArray = call.getArray("files");
+        if (fileArray == null) {
+            call.reject("missing argument files");
+            return;
+        }
+        Log.d(TAG, "invoking writeFiles, count=" + fileArray.length());
+        String defaultEncoding = call.getString("encoding");
+        boolean recursive =
+                Boolean.TRUE.equals(call.getBoolean("recursive", false));
+        boolean atomic = Boolean.TRUE.equals(call.getBoolean("atomic", false));
+        boolean skipUnchanged = Boolean.TRUE.equals(
+                call.getBoolean("skipUnchanged", atomic));
+        ContentResolver contentResolver = getContext().getContentResolver();
+
+        JSObject[] results = new JSObject[fileArray.length()];
+        // Null for the files which can't be written.
+        String[] writablePaths = new String[fileArray.length()];
+        byte[][] contents = new byte[fileArray.length()][];
+        for (int i = 0; i < fileArray.length(); i++) {
+            JSONObject file = fileArray.optJSONObject(i);
+            String path = file == null ? null : file.optString("path", null);
+            JSObject result = new JSObject();
+            result.put("path", path);
+            results[i] = result;
+            if (path == null || path.lastIndexOf('/') < 0) {
+                result.put("error", "missing argument path");
+                continue;
+            }
+            String data = file.optString("data", null);
+            if (data == null) {
+                result.put("error", "missing argument data");
+                continue;
+            }
+            String encoding = file.optString("encoding", defaultEncoding);
+            Charset charset = toCharset(encoding);
+            if (encoding != null && charset == null) {
+                result.put("error", "unsupported encoding provided: " + encoding);
+                continue;
+            }
+            try {
+                contents[i] = SafUtil.encodeData(data, charset);
+            } catch (IllegalArgumentException e) {
+                result.put("error", "invalid base64 data");
+                continue;
+            }
+            writablePaths[i] = path;
+        }
+        LinkedHashMap<String, List<Integer>> folders =
+                groupByFolder(Arrays.asList(writablePaths));
+
+        // Folders are resolved, and created, one by one. The first
+        // lookup of a file lists its folder, the other files of the
+        // folder hit the child index.
+        List<Future<?>> writes = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> folder : folders.entrySet()) {
+            String firstPath = results[folder.getValue().get(0)].getString("path");
+            Uri parentUri = mkdirImpl(firstPath, recursive, true);
+            for (int i : folder.getValue()) {
+                JSObject result = results[i];
+                String path = result.getString("path");
+                if (parentUri == null) {
+                    result.put("error", "failed to create file");
+                    continue;
+                }
+                Uri fileUri = FakePathFactory.getCachedUri(path);
+                if (fileUri == null) {
+                    fileUri = FakePathFactory.queryChildUri(folder.getKey(),
+                            parentUri, path.substring(path.lastIndexOf('/') + 1),
+                            contentResolver);
+                }
+                Uri existingUri = fileUri;
+                byte[] bytes = contents[i];
+                writes.add(mIo.parallel.submit(() -> {
+                    try {
+                        int status = writeFileTo(path, existingUri, parentUri,
+                                bytes, null, recursive, atomic, skipUnchanged);
+                        if (status == WRITE_CREATE_FAILED) {
+                            result.put("error", "failed to create file");
+                        } else {
+                            if (status == WRITE_DONE) {
+                                invalidateIndexedParent(path);
+                                mContentCache.invalidate(path);
+                            }
+                            result.put("uri", path);
+                            result.put("written", status == WRITE_DONE);
+                        }
+                    } catch (FileNotFoundException e) {
+                        FakePathFactory.invalidateCache(path);
+                        result.put("error", "file does not exist");
+                    } catch (IOException e) {
+                        result.put("error",
+                                "error occurred while writing to file: " + e);
+                    }
+                }));
+            }
+        }
+
+        try {
+            for (Future<?> write : writes) {
+                write.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            for (Future<?> write : writes) {
+                write.cancel(true);
+            }
+            call.reject("error occurred while writing files", e);
+            return;
+        }
+
+        JSArray resultArray = new JSArray();
+        for (JSObject result : results) {
+            resultArray.put(result);
+        }
+        JSObject ret = new JSObject();
+        ret.put("files", resultArray);
+        call.resolve(ret);
+    }
+
+    // Writes one file of writeFile or writeFiles. `fileUri` is the
+    // document if it's known to exist, else it's created in `parentUri`
+    // if known, else the path is resolved. Returns WRITE_*.
+    private int writeFileTo(String fakePath, @Nullable Uri fileUri,
+                            @Nullable Uri parentUri, @Nullable byte[] bytes,
+                            @Nullable String sourceUri, boolean recursive,
+                            boolean atomic, boolean skipUnchanged) throws IOException {
+        ContentResolver contentResolver = getContext().getContentResolver();
+        if (fileUri == null && parentUri == null && (atomic || skipUnchanged)) {
+            fileUri = FakePathFactory.fakePathToUri(fakePath, contentResolver);
+        }
+
+        if (fileUri != null) {
+            if (skipUnchanged && bytes != null &&
+                    SafUtil.contentEquals(fileUri, bytes, contentResolver)) {
+                Log.d(TAG, "unchanged content, skip writing " + fakePath);
+                return WRITE_UNCHANGED;
+            }
+        } else if (parentUri != null) {
+            fileUri = SafUtil.createFile(parentUri,
+                    fakePath.substring(fakePath.lastIndexOf('/') + 1),
+                    contentResolver);
+            FakePathFactory.addChild(fakePath, fileUri);
+        }
+        if (fileUri == null) {
+            fileUri = ensureFileExists(fakePath, recursive);
+            Log.d(TAG, "uri=" + fileUri);
+            if (fileUri == null) {
+                return WRITE_CREATE_FAILED;
+            }
+        }
+
+        try {
+            writeContent(fileUri, bytes, sourceUri, atomic);
+        } catch (FileNotFoundException e) {
+            // The cached uri may be stale, resolve the path again.
+            FakePathFactory.invalidateCache(fakePath);
+            fileUri = ensureFileExists(fakePath, recursive);
+            if (fileUri == null) {
+                throw e;
+            }
+            writeContent(fileUri, bytes, sourceUri, atomic);
+        }
+        return WRITE_DONE;
+    }
+
+    // Writes `bytes`, or copies `sourceUri`, into the file. Durable
+    // writes are flushed to the storage.
+    private void writeContent(Uri fileUri, @Nullable byte[] bytes,
+                               @Nullable String sourceUri,
+                               boolean durable) throws IOException {
+        ContentResolver contentResolver = getContext().getContentResolver();
+        if (sourceUri != null) {
+            SafUtil.copyFile(Uri.parse(sourceUri), fileUri, durable,
+                    contentResolver);
+        } else if (durable) {
+            SafUtil.writeFileDurably(fileUri, bytes, contentResolver);
+        } else {
+            SafUtil.writeFile(fileUri, bytes, contentResolver);
+        }
+    }
+
+    // Returns the content uri of the document and a url under the
+    // WebView's local server that streams it, so that binary assets
+    // can be loaded by the WebView directly instead of as base64 data.
+    // The url is read-only, see writeFile for the write side.
+    @PluginMethod()
+    public void getUri(PluginCall call) {
+        executeQuery(call, () -> getUriCall(call));
+    }
+
+    private void getUriCall(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        String path = call.getString("path");
+        Log.d(TAG, "invoking getUri, path=" + path);
+        Uri uri = FakePathFactory.fakePathToUri(path,
+                getContext().getContentResolver());
+        if (uri == null) {
+            call.reject("invalid path");
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("uri", uri.toString());
+        ret.put("webPath", getBridge().getLocalUrl()
+                + Bridge.CAPACITOR_CONTENT_START + "/" + uri.getAuthority()
+                + uri.getEncodedPath());
+        call.resolve(ret);
+    }
+
     @PluginMethod
     public void deleteFile(PluginCall call) {
+        executeWrite(call, () -> deleteFileCall(call));
+    }
+
+    private void deleteFileCall(PluginCall call) {
         if (call == null) {
             return;
         }
@@ -279,21 +1215,32 @@ public class SafBasedFs extends Plugin {
                     getContext().getContentResolver(), uri)) {
                 call.reject("failed to delete file");
             } else {
+                FakePathFactory.removeChild(path);
+                invalidateIndexedTree(path);
+                mContentCache.invalidateTree(path);
                 call.resolve();
             }
         } catch (FileNotFoundException e) {
+            FakePathFactory.invalidateCache(path);
+            invalidateIndexedTree(path);
+            mContentCache.invalidateTree(path);
             call.reject("error occurred while deleting file", e);
         }
     }
 
     @PluginMethod
     public void rename(PluginCall call) {
+        executeWrite(call, () -> renameCall(call));
+    }
+
+    private void renameCall(PluginCall call) {
         if (call == null) {
             return;
         }
 
         String from = call.getString("from");
         String to = call.getString("to");
+        Boolean recursive = call.getBoolean("recursive", false);
         if (from == null || to == null) {
             call.reject("missing argument from or to");
             return;
@@ -302,10 +1249,6 @@ public class SafBasedFs extends Plugin {
             call.reject("the from and to are same");
             return;
         }
-        if (!FakePathFactory.isSiblingPath(from, to)) {
-            call.reject("only rename under the same folder is supported");
-            return;
-        }
 
         Log.d(TAG, "invoking rename, from=" + from + " to=" + to);
         Uri uriFrom = FakePathFactory.fakePathToUri(from,
@@ -317,23 +1260,238 @@ public class SafBasedFs extends Plugin {
         String[] segments = to.split("/");
         String newFileName = segments[segments.length - 1];
         try {
-            Uri newUri = DocumentsContract.renameDocument(
-                    getContext().getContentResolver(), uriFrom, newFileName);
+            Uri newUri;
+            if (FakePathFactory.isSiblingPath(from, to)) {
+                newUri = DocumentsContract.renameDocument(
+                        getContext().getContentResolver(), uriFrom,
+                        newFileName);
+            } else {
+                newUri = moveImpl(from, uriFrom, to,
+                        Boolean.TRUE.equals(recursive));
+            }
             if (newUri == null) {
                 call.reject("Error while rename, result uri is null");
                 return;
             }
+            FakePathFactory.moveCache(from, to, newUri);
+            invalidateIndexedTree(from);
+            invalidateIndexedTree(to);
+            mContentCache.invalidateTree(from);
+            mContentCache.invalidateTree(to);
             JSObject result = new JSObject();
             result.put("uri", to);
             call.resolve(result);
         } catch (FileNotFoundException e) {
+            FakePathFactory.invalidateCache(from);
+            call.reject("error occurred while rename", e);
+        } catch (IOException e) {
             call.reject("error occurred while rename", e);
         }
     }
 
+    // Moves the document to another folder. Lets the provider move the
+    // document itself when it supports so, otherwise copies the
+    // document and deletes the source.
+    @Nullable
+    private Uri moveImpl(String from, Uri uriFrom, String to,
+                         boolean recursive) throws IOException {
+        ContentResolver contentResolver = getContext().getContentResolver();
+        Uri targetParentUri = mkdirImpl(to, recursive, true);
+        if (targetParentUri == null) {
+            throw new FileNotFoundException("invalid to path");
+        }
+        String newFileName = to.substring(to.lastIndexOf('/') + 1);
+        Uri existedFile = FakePathFactory.queryChildUri(
+                to.substring(0, to.lastIndexOf('/')), targetParentUri,
+                newFileName, contentResolver);
+
+        SafUtil.DocumentInfo source =
+                SafUtil.queryDocumentInfo(uriFrom, contentResolver);
+        if (source == null) {
+            throw new FileNotFoundException("unable to query " + uriFrom);
+        }
+        // Moving onto an existing file would create a duplicated name,
+        // so the target is overwritten by the copy instead.
+        if (existedFile == null &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
+                (source.flags & DocumentsContract.Document.FLAG_SUPPORTS_MOVE) != 0 &&
+                uriFrom.getAuthority().equals(targetParentUri.getAuthority())) {
+            Uri sourceParentUri = FakePathFactory.fakePathToUri(
+                    from.substring(0, from.lastIndexOf('/')), contentResolver);
+            Uri moved = null;
+            try {
+                moved = sourceParentUri == null ? null :
+                        DocumentsContract.moveDocument(contentResolver,
+                                uriFrom, sourceParentUri, targetParentUri);
+            } catch (FileNotFoundException | UnsupportedOperationException e) {
+                Log.w(TAG, "provider failed to move document: " + e);
+            }
+            if (moved != null) {
+                if (source.name.equals(newFileName)) {
+                    return moved;
+                }
+                try {
+                    Uri renamed = DocumentsContract.renameDocument(
+                            contentResolver, moved, newFileName);
+                    if (renamed != null) {
+                        return renamed;
+                    }
+                } catch (FileNotFoundException | UnsupportedOperationException e) {
+                    Log.w(TAG, "provider failed to rename moved document: " + e);
+                }
+
+                // Move it back, so that the copy below starts from the
+                // source again.
+                Uri restored = null;
+                try {
+                    restored = DocumentsContract.moveDocument(contentResolver,
+                            moved, targetParentUri, sourceParentUri);
+                } catch (FileNotFoundException | UnsupportedOperationException e) {
+                    Log.e(TAG, "unable to move back document: " + e);
+                }
+                FakePathFactory.invalidateCache(from);
+                if (restored == null) {
+                    // Left in the target folder under its old name.
+                    String movedPath = to.substring(0, to.lastIndexOf('/') + 1)
+                            + source.name;
+                    FakePathFactory.addChild(movedPath, moved);
+                    invalidateIndexedTree(from);
+                    invalidateIndexedParent(movedPath);
+                    mContentCache.invalidateTree(from);
+                    throw new IOException("moved " + from + " to " + movedPath
+                            + " but failed to rename it to " + to);
+                }
+                uriFrom = restored;
+            }
+        }
+
+        Uri copied = copyImpl(uriFrom, to, targetParentUri);
+        if (copied == null) {
+            return null;
+        }
+        if (!DocumentsContract.deleteDocument(contentResolver, uriFrom)) {
+            Log.w(TAG, "failed to delete the source of move: " + from);
+        }
+        return copied;
+    }
+
     @PluginMethod
     public void copy(PluginCall call) {
-        call.unimplemented("copy is not implemented yet");
+        executeWrite(call, () -> copyCall(call));
+    }
+
+    private void copyCall(PluginCall call) {
+        if (call == null) {
+            return;
+        }
+
+        String from = call.getString("from");
+        String to = call.getString("to");
+        Boolean recursive = call.getBoolean("recursive", false);
+        if (from == null || to == null) {
+            call.reject("missing argument from or to");
+            return;
+        }
+        if (from.equals(to)) {
+            call.reject("the from and to are same");
+            return;
+        }
+
+        Log.d(TAG, "invoking copy, from=" + from + " to=" + to);
+        ContentResolver contentResolver = getContext().getContentResolver();
+        Uri uriFrom = FakePathFactory.fakePathToUri(from, contentResolver);
+        if (uriFrom == null) {
+            call.reject("invalid from path");
+            return;
+        }
+        Uri targetParentUri =
+                mkdirImpl(to, Boolean.TRUE.equals(recursive), true);
+        if (targetParentUri == null) {
+            call.reject("invalid to path");
+            return;
+        }
+
+        try {
+            Uri uriTo = copyImpl(uriFrom, to, targetParentUri);
+            if (uriTo == null) {
+                call.reject("failed to copy file");
+                return;
+            }
+            FakePathFactory.addChild(to, uriTo);
+            invalidateIndexedParent(to);
+            mContentCache.invalidateTree(to);
+            JSObject result = new JSObject();
+            result.put("uri", to);
+            call.resolve(result);
+        } catch (FileNotFoundException e) {
+            FakePathFactory.invalidateCache(from);
+            call.reject("file does not exist", e);
+        } catch (IOException e) {
+            call.reject("error occurred while copying file", e);
+        }
+    }
+
+    // Copies the document to the fake path `to` under the folder
+    // `targetParentUri`. Lets the provider copy the document itself
+    // when it supports so, otherwise transfers the content between
+    // file descriptors. An existing target file is overwritten.
+    @Nullable
+    private Uri copyImpl(Uri uriFrom, String to,
+                         Uri targetParentUri) throws IOException {
+        ContentResolver contentResolver = getContext().getContentResolver();
+        String newFileName = to.substring(to.lastIndexOf('/') + 1);
+        Uri existedFile = FakePathFactory.queryChildUri(
+                to.substring(0, to.lastIndexOf('/')), targetParentUri,
+                newFileName, contentResolver);
+        if (existedFile != null) {
+            SafUtil.copyFile(uriFrom, existedFile, contentResolver);
+            return existedFile;
+        }
+
+        SafUtil.DocumentInfo source =
+                SafUtil.queryDocumentInfo(uriFrom, contentResolver);
+        if (source == null) {
+            throw new FileNotFoundException("unable to query " + uriFrom);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
+                (source.flags & DocumentsContract.Document.FLAG_SUPPORTS_COPY) != 0 &&
+                uriFrom.getAuthority().equals(targetParentUri.getAuthority())) {
+            Uri copied = null;
+            try {
+                copied = DocumentsContract.copyDocument(contentResolver,
+                        uriFrom, targetParentUri);
+                if (copied != null && !source.name.equals(newFileName)) {
+                    Uri renamed = DocumentsContract.renameDocument(
+                            contentResolver, copied, newFileName);
+                    if (renamed == null) {
+                        throw new FileNotFoundException(
+                                "unable to rename the copy to " + newFileName);
+                    }
+                    copied = renamed;
+                }
+                if (copied != null) {
+                    return copied;
+                }
+            } catch (FileNotFoundException | UnsupportedOperationException e) {
+                Log.w(TAG, "provider failed to copy document: " + e);
+                if (copied != null) {
+                    // Don't leave the copy under the source name beside
+                    // the one made below.
+                    deleteQuietly(copied);
+                }
+            }
+        }
+
+        if (source.isDirectory()) {
+            throw new IOException("copying directory is not supported");
+        }
+        Uri created = SafUtil.createFile(targetParentUri, newFileName,
+                contentResolver);
+        if (created == null) {
+            return null;
+        }
+        SafUtil.copyFile(uriFrom, created, contentResolver);
+        return created;
     }
 
     private Uri mkdirImpl(String fakePath, Boolean recursive,
@@ -350,10 +1508,17 @@ public class SafBasedFs extends Plugin {
         if (ignoreLastSegment) {
             segments = Arrays.copyOfRange(segments, 0, segments.length - 1);
         }
+        String parentFakePath = FakePathFactory.getFakePathRoot(fakePath);
         for (int idx = 0; idx < segments.length; idx++) {
             String folderName = segments[idx];
-            Uri childUri = FakePathFactory.queryChildUri(parentUri, folderName,
-                    getContext().getContentResolver());
+            String childFakePath = FakePathFactory.buildChildFakePath(
+                    parentFakePath, folderName);
+            Uri childUri = FakePathFactory.getCachedUri(childFakePath);
+            if (childUri == null) {
+                childUri = FakePathFactory.queryChildUri(parentFakePath,
+                        parentUri, folderName,
+                        getContext().getContentResolver());
+            }
             if (childUri == null) {
                 if (idx != segments.length - 1 && !recursive) {
                     // fail when intermediate folder not
@@ -371,12 +1536,17 @@ public class SafBasedFs extends Plugin {
                         Log.e(TAG, "failed to create dir");
                         return null;
                     }
+                    invalidateIndexedParent(childFakePath);
+                    FakePathFactory.addChild(childFakePath, childUri);
                 } catch (FileNotFoundException e) {
                     Log.e(TAG, "failed to create dir:" + e);
                     return null;
                 }
+            } else {
+                FakePathFactory.cacheUri(childFakePath, childUri);
             }
             parentUri = childUri;
+            parentFakePath = childFakePath;
         }
         return parentUri;
     }
@@ -392,12 +1562,127 @@ public class SafBasedFs extends Plugin {
         if (segments.length == 0) {
             return parentUri;
         }
+        Uri cachedFile = FakePathFactory.getCachedUri(fakePath);
+        if (cachedFile != null) {
+            return cachedFile;
+        }
         String filename = segments[segments.length - 1];
-        Uri existedFile = FakePathFactory.queryChildUri(parentUri, filename,
+        Uri fileUri = FakePathFactory.queryChildUri(
+                fakePath.substring(0, fakePath.lastIndexOf('/')), parentUri,
+                filename, getContext().getContentResolver());
+        if (fileUri == null) {
+            fileUri = SafUtil.createFile(parentUri, filename,
+                    getContext().getContentResolver());
+            FakePathFactory.addChild(fakePath, fileUri);
+        } else {
+            FakePathFactory.cacheUri(fakePath, fileUri);
+        }
+        return fileUri;
+    }
+
+    // Evicts the cached uri of the path after an operation on it failed
+    // and resolves the path again. The cached document may be gone while
+    // the path exists, e.g. a sync client deleted and recreated it under
+    // a new document id. Returns null unless it resolves to another uri.
+    @Nullable
+    private Uri resolveAgain(String fakePath, Uri staleUri) {
+        FakePathFactory.invalidateCache(fakePath);
+        Uri uri = FakePathFactory.fakePathToUri(fakePath,
                 getContext().getContentResolver());
-        return existedFile != null ? existedFile :
-                SafUtil.createFile(parentUri, filename,
-                        getContext().getContentResolver());
+        return uri == null || uri.equals(staleUri) ? null : uri;
+    }
+
+    // Reads the document at the resolved uri of the path, retrying once
+    // if the uri was stale.
+    private byte[] readDocument(String fakePath, Uri uri) throws IOException {
+        ContentResolver contentResolver = getContext().getContentResolver();
+        try {
+            return SafUtil.readFileBytes(uri, contentResolver);
+        } catch (FileNotFoundException e) {
+            Uri retryUri = resolveAgain(fakePath, uri);
+            if (retryUri == null) {
+                throw e;
+            }
+            return SafUtil.readFileBytes(retryUri, contentResolver);
+        }
+    }
+
+    private void deleteQuietly(Uri uri) {
+        try {
+            DocumentsContract.deleteDocument(getContext().getContentResolver(),
+                    uri);
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "unable to delete " + uri + ": " + e);
+        }
+    }
+
+    // Groups the indexes of the paths by their parent folder, in the
+    // order of the paths. Paths without a parent are left out.
+    static private LinkedHashMap<String, List<Integer>> groupByFolder(
+            List<String> paths) {
+        LinkedHashMap<String, List<Integer>> folders = new LinkedHashMap<>();
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            if (path == null || path.lastIndexOf('/') < 0) {
+                continue;
+            }
+            String folder = path.substring(0, path.lastIndexOf('/'));
+            List<Integer> indexes = folders.get(folder);
+            if (indexes == null) {
+                indexes = new ArrayList<>();
+                folders.put(folder, indexes);
+            }
+            indexes.add(i);
+        }
+        return folders;
+    }
+
+    @Nullable
+    private SafTreeIndex getTreeIndex(String fakePath) {
+        String root = FakePathFactory.getFakePathRoot(fakePath);
+        if (root == null) {
+            return null;
+        }
+        synchronized (mTreeIndexes) {
+            SafTreeIndex index = mTreeIndexes.get(root);
+            if (index == null) {
+                index = new SafTreeIndex(new File(
+                        getContext().getNoBackupFilesDir(), "saf-index"), root);
+                mTreeIndexes.put(root, index);
+            }
+            return index;
+        }
+    }
+
+    private void saveTreeIndexes() {
+        List<SafTreeIndex> indexes;
+        synchronized (mTreeIndexes) {
+            indexes = new ArrayList<>(mTreeIndexes.values());
+        }
+        for (SafTreeIndex index : indexes) {
+            index.save();
+        }
+    }
+
+    // Drops the indexed listing of the folder holding `fakePath` after
+    // the app changed it. The change could fall within the resolution
+    // of the folder's last modified time, so it's not relied upon.
+    private void invalidateIndexedParent(String fakePath) {
+        int end = fakePath.replaceAll("/+$", "").lastIndexOf('/');
+        SafTreeIndex index = getTreeIndex(fakePath);
+        if (index != null && end > 0) {
+            index.invalidate(fakePath.substring(0, end));
+        }
+    }
+
+    // Same, also dropping the listings under `fakePath` if it was a
+    // folder.
+    private void invalidateIndexedTree(String fakePath) {
+        invalidateIndexedParent(fakePath);
+        SafTreeIndex index = getTreeIndex(fakePath);
+        if (index != null) {
+            index.invalidateSubtree(fakePath);
+        }
     }
 
     static private Charset toCharset(@Nullable String encoding) {
@@ -0,0 +1,284 @@
+package com.logseq.app;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Persistent listings of the folders of a SAF graph, one index per
+// tree root, so that the graph can be listed again, e.g. after a
+// restart, without listing the folders which didn't change.
+//
+// A folder's listing is trusted while the COLUMN_LAST_MODIFIED of the
+// folder is the one it had when it was listed, which costs one single
+// row query instead of a listing. A folder's last modified time only
+// changes when its entries do, so the size and mtime of a file whose
+// content changed in place may be stale in a trusted listing. Folders
+// without a last modified time are never trusted.
+public class SafTreeIndex {
+    static private final String TAG = "Logseq/SafTreeIndex";
+
+    static private final int MAGIC = 0x4c535449; // "LSTI"
+    static private final int VERSION = 1;
+
+    static public class Child {
+        public final String name;
+        public final String documentId;
+        public final String mimeType;
+        public final long size;
+        public final long lastModified;
+
+        Child(String name, String documentId, String mimeType, long size,
+              long lastModified) {
+            this.name = name;
+            this.documentId = documentId;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isDirectory() {
+            return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
+        }
+    }
+
+    // The children of a folder, `fresh` if they were just listed from
+    // the provider rather than trusted from the index.
+    static public class Listing {
+        public final List<Child> children;
+        public final boolean fresh;
+
+        Listing(List<Child> children, boolean fresh) {
+            this.children = children;
+            this.fresh = fresh;
+        }
+    }
+
+    static private class Folder {
+        final String documentId;
+        final long lastModified;
+        final List<Child> children;
+
+        Folder(String documentId, long lastModified, List<Child> children) {
+            this.documentId = documentId;
+            this.lastModified = lastModified;
+            this.children = children;
+        }
+    }
+
+    private final DataFile mFile;
+    private final String mRoot;
+    // Keyed by the fake path of the folder, without trailing "/".
+    private final HashMap<String, Folder> mFolders = new HashMap<>();
+    private boolean mLoaded = false;
+    private boolean mDirty = false;
+
+    public SafTreeIndex(File directory, String rootFakePath) {
+        mRoot = normalize(rootFakePath);
+        mFile = new DataFile(new File(directory,
+                DataFile.nameOf(mRoot) + ".index"), MAGIC, VERSION);
+    }
+
+    // Returns the children of the folder at `fakePath` with document
+    // uri `folderUri`. If `trusted`, the indexed listing is returned as
+    // long as the folder didn't change. Its last modified time is
+    // queried if `trusted` and `lastModified` is -1, rather than known,
+    // e.g. from a fresh listing of the parent. It's queried before
+    // listing, so a change during the listing leaves an outdated time
+    // and the next listing is fresh. A fresh listing is only indexed
+    // with a known time, so an untrusted listing costs a single query.
+    // Returns null if the folder can't be listed.
+    @Nullable
+    public Listing list(String fakePath, Uri folderUri, long lastModified,
+                        boolean trusted, ContentResolver contentResolver) {
+        String key = normalize(fakePath);
+        String documentId = DocumentsContract.getDocumentId(folderUri);
+        if (trusted) {
+            if (lastModified < 0) {
+                lastModified = queryLastModified(folderUri, contentResolver);
+            }
+            Folder folder;
+            synchronized (this) {
+                load();
+                folder = mFolders.get(key);
+            }
+            if (folder != null && folder.documentId.equals(documentId)
+                    && lastModified > 0 && lastModified == folder.lastModified) {
+                return new Listing(folder.children, false);
+            }
+        }
+
+        List<Child> children = new ArrayList<>();
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+                folderUri, documentId);
+        try (Cursor cursor = contentResolver.query(childrenUri,
+                SafUtil.statColumns(), null, null, null)) {
+            if (cursor == null) {
+                invalidate(fakePath);
+                return null;
+            }
+            int idColumn = cursor.getColumnIndexOrThrow(
+                    DocumentsContract.Document.COLUMN_DOCUMENT_ID);
+            int mimeTypeColumn = cursor.getColumnIndexOrThrow(
+                    DocumentsContract.Document.COLUMN_MIME_TYPE);
+            while (cursor.moveToNext()) {
+                children.add(new Child(SafUtil.getFileName(cursor),
+                        cursor.getString(idColumn),
+                        cursor.getString(mimeTypeColumn),
+                        SafUtil.getFileSize(cursor),
+                        SafUtil.getFileLastModifiedTime(cursor)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "unable to list " + fakePath + ": " + e);
+            invalidate(fakePath);
+            return null;
+        }
+
+        children = Collections.unmodifiableList(children);
+        if (lastModified <= 0) {
+            // Unknown or can't be validated later, keep what's indexed.
+            return new Listing(children, true);
+        }
+        synchronized (this) {
+            load();
+            Folder old = mFolders.put(key, new Folder(documentId,
+                    lastModified, children));
+            if (old != null) {
+                // Forget the subtrees of the folders which are gone.
+                for (Child child : old.children) {
+                    if (child.isDirectory() && !containsFolder(children, child)) {
+                        removeSubtree(key + "/" + child.name);
+                    }
+                }
+            }
+            mDirty = true;
+        }
+        return new Listing(children, true);
+    }
+
+    // Forgets the listing of the folder, e.g. after it was changed by
+    // the app, whose changes may be within the resolution of the last
+    // modified time.
+    public synchronized void invalidate(String folderFakePath) {
+        load();
+        if (mFolders.remove(normalize(folderFakePath)) != null) {
+            mDirty = true;
+        }
+    }
+
+    // Forgets the folder and all folders under it.
+    public synchronized void invalidateSubtree(String folderFakePath) {
+        load();
+        removeSubtree(normalize(folderFakePath));
+    }
+
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+
+        if (mFile.write(out -> {
+            out.writeUTF(mRoot);
+            out.writeInt(mFolders.size());
+            for (Map.Entry<String, Folder> entry : mFolders.entrySet()) {
+                Folder folder = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(folder.documentId);
+                out.writeLong(folder.lastModified);
+                out.writeInt(folder.children.size());
+                for (Child child : folder.children) {
+                    out.writeUTF(child.name);
+                    out.writeUTF(child.documentId);
+                    out.writeUTF(child.mimeType == null ? "" : child.mimeType);
+                    out.writeLong(child.size);
+                    out.writeLong(child.lastModified);
+                }
+            }
+        })) {
+            mDirty = false;
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mFile.read(in -> {
+            if (!in.readUTF().equals(mRoot)) {
+                return false;
+            }
+            int folderCount = in.readInt();
+            for (int i = 0; i < folderCount; i++) {
+                String key = in.readUTF();
+                String documentId = in.readUTF();
+                long lastModified = in.readLong();
+                int childCount = in.readInt();
+                List<Child> children = new ArrayList<>(childCount);
+                for (int j = 0; j < childCount; j++) {
+                    children.add(new Child(in.readUTF(), in.readUTF(),
+                            in.readUTF(), in.readLong(), in.readLong()));
+                }
+                mFolders.put(key, new Folder(documentId, lastModified,
+                        Collections.unmodifiableList(children)));
+            }
+            return true;
+        })) {
+            mFolders.clear();
+        }
+    }
+
+    private void removeSubtree(String key) {
+        String prefix = key + "/";
+        Iterator<String> iterator = mFolders.keySet().iterator();
+        while (iterator.hasNext()) {
+            String path = iterator.next();
+            if (path.equals(key) || path.startsWith(prefix)) {
+                iterator.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    static private boolean containsFolder(List<Child> children, Child folder) {
+        for (Child child : children) {
+            if (child.isDirectory() && child.name.equals(folder.name) &&
+                    child.documentId.equals(folder.documentId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns 0 if unknown.
+    static private long queryLastModified(Uri uri,
+                                          ContentResolver contentResolver) {
+        try (Cursor cursor = contentResolver.query(uri, new String[]{
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED},
+                null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return 0;
+            }
+            return cursor.getLong(0);
+        } catch (Exception e) {
+            Log.d(TAG, "unable to stat " + uri + ": " + e);
+            return 0;
+        }
+    }
+
+    static private String normalize(String fakePath) {
+        return fakePath.replaceAll("/+$", "");
+    }
+}
@@ -3,24 +3,47 @@ package com.logseq.app;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
 import android.util.Base64;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
-import java.io.BufferedWriter;
+import androidx.annotation.Nullable;
+
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 public class SafUtil {
     static private final String TAG = "Logseq/SafUtil";
 
+    // Upper bound of the length of a single ranged read, which also
+    // bounds the memory used by one read no matter the file size.
+    static public final int MAX_RANGE_LENGTH = 1024 * 1024;
+
+    static private final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Direct buffers are expensive to allocate, so each reading thread
+    // reuses its own one.
+    static private final ThreadLocal<ByteBuffer> sRangeBuffer =
+            new ThreadLocal<ByteBuffer>() {
+                @Override
+                protected ByteBuffer initialValue() {
+                    return ByteBuffer.allocateDirect(MAX_RANGE_LENGTH);
+                }
+            };
+
     static public String[] statColumns() {
         return new String[]{
                 DocumentsContract.Document.COLUMN_DOCUMENT_ID,
@@ -53,15 +76,130 @@ public class SafUtil {
                 DocumentsContract.Document.COLUMN_LAST_MODIFIED));
     }
 
+    // The columns of a single document needed to decide how to operate
+    // on it.
+    static public class DocumentInfo {
+        public final String name;
+        public final String mimeType;
+        public final int flags;
+
+        DocumentInfo(String name, String mimeType, int flags) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.flags = flags;
+        }
+
+        public boolean isDirectory() {
+            return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
+        }
+    }
+
+    @Nullable
+    static public DocumentInfo queryDocumentInfo(Uri uri,
+                                                 ContentResolver contentResolver) {
+        try (Cursor cursor = contentResolver.query(uri,
+                new String[]{
+                        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                        DocumentsContract.Document.COLUMN_MIME_TYPE,
+                        DocumentsContract.Document.COLUMN_FLAGS},
+                null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            return new DocumentInfo(getFileName(cursor),
+                    cursor.getString(cursor.getColumnIndexOrThrow(
+                            DocumentsContract.Document.COLUMN_MIME_TYPE)),
+                    cursor.getInt(cursor.getColumnIndexOrThrow(
+                            DocumentsContract.Document.COLUMN_FLAGS)));
+        } catch (Exception e) {
+            Log.e(TAG, "unable to query document, exception:" + e);
+            return null;
+        }
+    }
+
+    // The stat of a document, see queryChildStats().
+    static public class DocumentStat {
+        public final String documentId;
+        public final String mimeType;
+        public final long size;
+        public final long lastModified;
+
+        DocumentStat(String documentId, String mimeType, long size,
+                     long lastModified) {
+            this.documentId = documentId;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isDirectory() {
+            return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
+        }
+    }
+
+    // Returns null if the document can't be queried.
+    @Nullable
+    static public DocumentStat queryDocumentStat(Uri uri,
+                                                 ContentResolver contentResolver) {
+        try (Cursor cursor = contentResolver.query(uri, statColumns(), null,
+                null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            return new DocumentStat(
+                    cursor.getString(cursor.getColumnIndexOrThrow(
+                            DocumentsContract.Document.COLUMN_DOCUMENT_ID)),
+                    cursor.getString(cursor.getColumnIndexOrThrow(
+                            DocumentsContract.Document.COLUMN_MIME_TYPE)),
+                    getFileSize(cursor), getFileLastModifiedTime(cursor));
+        } catch (Exception e) {
+            Log.e(TAG, "unable to query document, exception:" + e);
+            return null;
+        }
+    }
+
+    // Lists the children of a folder with one query, keyed by name.
+    // Returns null if the folder can't be listed.
+    @Nullable
+    static public Map<String, DocumentStat> queryChildStats(Uri folderUri,
+                                                          ContentResolver contentResolver) {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+                folderUri, DocumentsContract.getDocumentId(folderUri));
+        try (Cursor cursor = contentResolver.query(childrenUri, statColumns(),
+                null, null, null)) {
+            if (cursor == null) {
+                return null;
+            }
+            Map<String, DocumentStat> children = new HashMap<>();
+            while (cursor.moveToNext()) {
+                children.put(getFileName(cursor), new DocumentStat(
+                        cursor.getString(cursor.getColumnIndexOrThrow(
+                                DocumentsContract.Document.COLUMN_DOCUMENT_ID)),
+                        cursor.getString(cursor.getColumnIndexOrThrow(
+                                DocumentsContract.Document.COLUMN_MIME_TYPE)),
+                        getFileSize(cursor), getFileLastModifiedTime(cursor)));
+            }
+            return children;
+        } catch (Exception e) {
+            Log.e(TAG, "unable to list " + folderUri + ": " + e);
+            return null;
+        }
+    }
+
     static public String readFile(Uri uri, Charset charset,
                                   ContentResolver contentResolver) throws IOException {
-        try (InputStream is = contentResolver.openInputStream(uri)) {
-            if (is == null) {
-                throw new IOException("Failed to open input stream");
+        return decodeData(readFileBytes(uri, contentResolver), charset);
+    }
+
+    static public byte[] readFileBytes(Uri uri,
+                                       ContentResolver contentResolver) throws IOException {
+        try (ParcelFileDescriptor pfd =
+                     contentResolver.openFileDescriptor(uri, "r")) {
+            if (pfd == null) {
+                throw new IOException("Failed to open file descriptor");
             }
 
-            return charset != null ? readFileAsString(is, charset.name()) :
-                    readFileAsBase64EncodedData(is);
+            return readFully(pfd);
         } catch (FileNotFoundException e) {
             Log.e(TAG, "file not found: " + e);
             throw e;
@@ -71,37 +209,119 @@ public class SafUtil {
         }
     }
 
-    static private String readFileAsString(InputStream is,
-                                           String encoding) throws IOException {
+    // The inverse of encodeData(), without data url header.
+    static public String decodeData(byte[] data, @Nullable Charset charset) {
+        return charset != null ? new String(data, charset) :
+                Base64.encodeToString(data, Base64.NO_WRAP);
+    }
+
+    // Reads the whole file into a single array sized by the file
+    // descriptor, avoiding the intermediate copies of growing buffers.
+    static private byte[] readFully(ParcelFileDescriptor pfd) throws IOException {
+        long size = pfd.getStatSize();
+        try (InputStream is = new FileInputStream(pfd.getFileDescriptor())) {
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                // Size is unknown, e.g. the file is a pipe.
+                return readStream(is);
+            }
+
+            byte[] data = new byte[(int) size];
+            int offset = 0;
+            int length;
+            while (offset < data.length &&
+                    (length = is.read(data, offset, data.length - offset)) != -1) {
+                offset += length;
+            }
+            return offset == data.length ? data : Arrays.copyOf(data, offset);
+        }
+    }
+
+    static private byte[] readStream(InputStream is) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
-        byte[] buffer = new byte[1024];
-        int length = 0;
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int length;
 
         while ((length = is.read(buffer)) != -1) {
             outputStream.write(buffer, 0, length);
         }
 
-        return outputStream.toString(encoding);
+        return outputStream.toByteArray();
+    }
+
+    // The result of a ranged read.
+    static public class FileRange {
+        public final byte[] data;
+        // Size of the whole file, -1 if unknown.
+        public final long size;
+        public final boolean eof;
+
+        FileRange(byte[] data, long size, boolean eof) {
+            this.data = data;
+            this.size = size;
+            this.eof = eof;
+        }
     }
 
-    static private String readFileAsBase64EncodedData(
-            InputStream is) throws IOException {
-        FileInputStream fileInputStreamReader = (FileInputStream) is;
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+    // Reads at most `length` bytes starting from `offset`. Only the
+    // requested range is buffered, so large files can be read chunk by
+    // chunk with bounded memory.
+    static public FileRange readFileRange(Uri uri, long offset, int length,
+                                          ContentResolver contentResolver) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IOException("invalid range");
+        }
+        length = Math.min(length, MAX_RANGE_LENGTH);
+
+        try (ParcelFileDescriptor pfd =
+                     contentResolver.openFileDescriptor(uri, "r")) {
+            if (pfd == null) {
+                throw new IOException("Failed to open file descriptor");
+            }
 
-        byte[] buffer = new byte[1024];
+            long size = pfd.getStatSize();
+            ByteBuffer buffer = sRangeBuffer.get();
+            buffer.clear();
+            buffer.limit(length);
+            try (FileInputStream fis =
+                         new FileInputStream(pfd.getFileDescriptor())) {
+                FileChannel channel = fis.getChannel();
+                long position = offset;
+                int count;
+                while (buffer.hasRemaining() &&
+                        (count = channel.read(buffer, position)) != -1) {
+                    position += count;
+                }
+            }
 
-        int c;
-        while ((c = fileInputStreamReader.read(buffer)) != -1) {
-            byteStream.write(buffer, 0, c);
+            buffer.flip();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            boolean eof = size >= 0 ? offset + data.length >= size :
+                    data.length < length;
+            return new FileRange(data, size, eof);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "file not found: " + e);
+            throw e;
         }
-        fileInputStreamReader.close();
+    }
 
-        return Base64.encodeToString(byteStream.toByteArray(), Base64.NO_WRAP);
+    // Encodes the data of a write, text in the charset, or base64 with
+    // an optional data url header if there's no charset. Throws
+    // IllegalArgumentException on bad base64.
+    static public byte[] encodeData(String data, @Nullable Charset charset) {
+        if (charset != null) {
+            return data.getBytes(charset);
+        }
+        //remove header from data URL
+        int headerEnd = data.indexOf(',');
+        if (headerEnd != -1) {
+            data = data.substring(headerEnd + 1);
+        }
+        return Base64.decode(data, Base64.NO_WRAP);
     }
 
-    static public void writeFile(Uri fileUri, String data, Charset charset,
+    static public void writeFile(Uri fileUri, byte[] bytes,
                                  ContentResolver contentResolver) throws IOException {
         try (OutputStream os = contentResolver
                 .openOutputStream(fileUri, "w")) {
@@ -109,22 +329,134 @@ public class SafUtil {
                 Log.e(TAG, "failed to open file to write");
                 throw new IOException("failed to open file to write");
             }
+            os.write(bytes);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            throw e;
+        }
+    }
+
+    // Writes the file truncated with "rwt", and flushes it to the
+    // storage before returning.
+    static public void writeFileDurably(Uri fileUri, byte[] bytes,
+                                        ContentResolver contentResolver) throws IOException {
+        try (ParcelFileDescriptor pfd =
+                     contentResolver.openFileDescriptor(fileUri, "rwt")) {
+            if (pfd == null) {
+                throw new IOException("failed to open file to write");
+            }
+            FileOutputStream os = new FileOutputStream(pfd.getFileDescriptor());
+            os.write(bytes);
+            sync(pfd);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            throw e;
+        }
+    }
 
-            if (charset != null) {
-                BufferedWriter writer =
-                        new BufferedWriter(new OutputStreamWriter(os, charset));
-                writer.write(data);
-                writer.close();
+    // fsync, best effort: pipes of remote providers can't be synced.
+    static private void sync(ParcelFileDescriptor pfd) {
+        try {
+            pfd.getFileDescriptor().sync();
+        } catch (IOException e) {
+            Log.d(TAG, "unable to sync file: " + e);
+        }
+    }
+
+    // Whether the document holds exactly these bytes. The content isn't
+    // read if the size differs. Unreadable documents are different.
+    static public boolean contentEquals(Uri uri, byte[] bytes,
+                                        ContentResolver contentResolver) {
+        try (ParcelFileDescriptor pfd =
+                     contentResolver.openFileDescriptor(uri, "r")) {
+            if (pfd == null) {
+                return false;
+            }
+            long size = pfd.getStatSize();
+            if (size >= 0 && size != bytes.length) {
+                return false;
+            }
+
+            FileInputStream is = new FileInputStream(pfd.getFileDescriptor());
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int offset = 0;
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                if (offset + length > bytes.length) {
+                    return false;
+                }
+                for (int i = 0; i < length; i++) {
+                    if (buffer[i] != bytes[offset + i]) {
+                        return false;
+                    }
+                }
+                offset += length;
+            }
+            return offset == bytes.length;
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Copies the content of `sourceUri` into `targetUri` without
+    // buffering the whole file, using `FileChannel.transferTo` when the
+    // size of the source is known. Returns the number of bytes copied.
+    static public long copyFile(Uri sourceUri, Uri targetUri,
+                                ContentResolver contentResolver) throws IOException {
+        return copyFile(sourceUri, targetUri, false, contentResolver);
+    }
+
+    // Also flushes the target to the storage if `durable`. The target is
+    // opened with "rwt", as "w" doesn't truncate with some providers
+    // and a shorter source would leave the old file's tail.
+    static public long copyFile(Uri sourceUri, Uri targetUri, boolean durable,
+                                ContentResolver contentResolver) throws IOException {
+        try (ParcelFileDescriptor sourcePfd =
+                     contentResolver.openFileDescriptor(sourceUri, "r");
+             ParcelFileDescriptor targetPfd =
+                     contentResolver.openFileDescriptor(targetUri, "rwt")) {
+            if (sourcePfd == null || targetPfd == null) {
+                throw new IOException("failed to open file to copy");
+            }
+
+            FileInputStream is =
+                    new FileInputStream(sourcePfd.getFileDescriptor());
+            FileOutputStream os =
+                    new FileOutputStream(targetPfd.getFileDescriptor());
+            long size = sourcePfd.getStatSize();
+            long position = 0;
+            if (size >= 0) {
+                FileChannel source = is.getChannel();
+                while (position < size) {
+                    long count = source.transferTo(position, size - position,
+                            os.getChannel());
+                    if (count <= 0) {
+                        break;
+                    }
+                    position += count;
+                }
             } else {
-                //remove header from data URL
-                if (data.contains(",")) {
-                    data = data.split(",")[1];
+                // Size is unknown, e.g. the source is a pipe.
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int length;
+                while ((length = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, length);
+                    position += length;
                 }
-                os.write(Base64.decode(data, Base64.NO_WRAP));
-                os.close();
             }
+
+            try {
+                // Some providers don't truncate files opened with "w".
+                os.getChannel().truncate(position);
+            } catch (IOException e) {
+                Log.d(TAG, "unable to truncate copied file: " + e);
+            }
+            if (durable) {
+                sync(targetPfd);
+            }
+            return position;
         } catch (IOException e) {
-            Log.e(TAG, e.toString());
+            Log.e(TAG, "error while copying file: " + e);
             throw e;
         }
     }
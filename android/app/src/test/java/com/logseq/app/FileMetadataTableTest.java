@@ -0,0 +1,151 @@
+package com.logseq.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class FileMetadataTableTest {
+    // "Aa" and "BB" have the same String.hashCode(), so these paths all
+    // collide in the index.
+    static private final String[] COLLIDING = {
+            "/g/AaAa", "/g/AaBB", "/g/BBAa", "/g/BBBB"};
+
+    @Test
+    public void insertFindAndUpdate() {
+        FileMetadataTable table = new FileMetadataTable();
+        int row = table.insert("/g/pages/a.md", 1, 2, 3, 4, 5);
+        assertEquals(row, table.find("/g/pages/a.md"));
+        assertEquals(-1, table.find("/g/pages/b.md"));
+        assertEquals(1, table.size());
+        assertTrue(table.matches(row, 1, 2, 3, 4));
+
+        table.set(row, 10, 2, 30, 4, FileMetadataTable.NO_DIGEST);
+        assertFalse(table.matches(row, 1, 2, 3, 4));
+        assertEquals(10, table.getMtime(row));
+        assertEquals(30, table.getSize(row));
+        assertEquals(FileMetadataTable.NO_DIGEST, table.getDigest(row));
+    }
+
+    @Test
+    public void removeKeepsCollidingEntriesReachable() {
+        for (int removed = 0; removed < COLLIDING.length; removed++) {
+            FileMetadataTable table = new FileMetadataTable();
+            for (String path : COLLIDING) {
+                table.insert(path, 0, 0, 0, 0, 0);
+            }
+            table.remove(table.find(COLLIDING[removed]));
+            for (int i = 0; i < COLLIDING.length; i++) {
+                int row = table.find(COLLIDING[i]);
+                if (i == removed) {
+                    assertEquals(-1, row);
+                } else {
+                    assertEquals(COLLIDING[i], table.getPath(row));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void freedRowsAreReused() {
+        FileMetadataTable table = new FileMetadataTable();
+        table.insert("/g/a", 0, 0, 0, 0, 0);
+        int row = table.insert("/g/b", 0, 0, 0, 0, 0);
+        table.remove(row);
+        assertNull(table.getPath(row));
+        assertEquals(row, table.insert("/g/c", 0, 0, 0, 0, 0));
+        assertEquals(2, table.getRowLimit());
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void generationsMarkSeenRows() {
+        FileMetadataTable table = new FileMetadataTable();
+        int a = table.insert("/g/a", 0, 0, 0, 0, 0);
+        int b = table.insert("/g/b", 0, 0, 0, 0, 0);
+        int generation = table.nextGeneration();
+        table.mark(a, generation);
+        assertTrue(table.isMarked(a, generation));
+        assertFalse(table.isMarked(b, generation));
+        assertEquals(generation, table.getGeneration());
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        Random random = new Random(42);
+        FileMetadataTable table = new FileMetadataTable(1);
+        Map<String, Long> expected = new HashMap<>();
+        List<String> known = new ArrayList<>();
+        for (int step = 0; step < 200000; step++) {
+            int op = random.nextInt(10);
+            if (op < 5 || known.isEmpty()) {
+                String path = "/g/pages/" + random.nextInt(5000) + ".md";
+                if (!expected.containsKey(path)) {
+                    long size = random.nextLong();
+                    table.insert(path, 0, 0, size, 0, 0);
+                    expected.put(path, size);
+                    known.add(path);
+                }
+            } else if (op < 8) {
+                int index = random.nextInt(known.size());
+                String path = known.get(index);
+                table.remove(table.find(path));
+                expected.remove(path);
+                known.set(index, known.get(known.size() - 1));
+                known.remove(known.size() - 1);
+            } else {
+                String path = "/g/pages/" + random.nextInt(5000) + ".md";
+                int row = table.find(path);
+                Long size = expected.get(path);
+                if (size == null) {
+                    assertEquals(path, -1, row);
+                } else {
+                    assertEquals(path, (long) size, table.getSize(row));
+                }
+            }
+            assertEquals(expected.size(), table.size());
+        }
+
+        int rows = 0;
+        for (int row = 0; row < table.getRowLimit(); row++) {
+            String path = table.getPath(row);
+            if (path != null) {
+                rows++;
+                assertEquals(row, table.find(path));
+                assertEquals(path, (long) expected.get(path), table.getSize(row));
+            }
+        }
+        assertEquals(expected.size(), rows);
+    }
+
+    @Test
+    public void scanBufferGrowsAndClears() {
+        FileMetadataTable.ScanBuffer buffer = new FileMetadataTable.ScanBuffer();
+        FileMetadataTable.ScanBuffer other = new FileMetadataTable.ScanBuffer();
+        for (int i = 0; i < 1000; i++) {
+            buffer.add("/g/a" + i, i, i + 1, i + 2, i + 3);
+            other.add("/g/b" + i, -i, 0, 0, 0);
+        }
+        buffer.addAll(other);
+        assertEquals(2000, buffer.size());
+        assertEquals("/g/a999", buffer.getPath(999));
+        assertEquals(1001, buffer.getSize(999));
+        assertEquals(1002, buffer.getIno(999));
+        assertEquals("/g/b999", buffer.getPath(1999));
+        assertEquals(-999, buffer.getMtime(1999));
+
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        buffer.add("/g/c", 1, 2, 3, 4);
+        assertEquals("/g/c", buffer.getPath(0));
+        assertEquals(2, buffer.getCtime(0));
+    }
+}
@@ -0,0 +1,129 @@
+package com.logseq.app;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class IgnoreRulesTest {
+    static private final String ROOT = "/storage/graph";
+
+    static private IgnoreRules excluding(String... globs) {
+        return new IgnoreRules(Collections.<String>emptyList(),
+                Arrays.asList(globs), Collections.singletonList("md"));
+    }
+
+    static private boolean ignoresDirectory(IgnoreRules rules, String relpath) {
+        return rules.shouldIgnoreDirectory(name(relpath), ROOT + "/" + relpath,
+                ROOT.length() + 1);
+    }
+
+    static private boolean ignoresFile(IgnoreRules rules, String relpath) {
+        return rules.shouldIgnoreFile(name(relpath), ROOT + "/" + relpath,
+                ROOT.length() + 1);
+    }
+
+    static private String name(String relpath) {
+        return relpath.substring(relpath.lastIndexOf('/') + 1);
+    }
+
+    @Test
+    public void defaultExcludes() {
+        IgnoreRules rules = IgnoreRules.DEFAULT;
+        assertTrue(ignoresDirectory(rules, ".git"));
+        assertTrue(ignoresDirectory(rules, "logseq/bak"));
+        assertTrue(ignoresDirectory(rules, "assets/node_modules"));
+        assertFalse(ignoresDirectory(rules, "pages"));
+        assertTrue(ignoresFile(rules, "logseq/graphs-txid.edn"));
+        assertFalse(ignoresFile(rules, "pages/a.md"));
+        // Directory only patterns don't match files.
+        assertFalse(ignoresFile(rules, "pages/bak"));
+    }
+
+    @Test
+    public void doubleStarSlashMatchesAnyDepth() {
+        IgnoreRules rules = excluding("**/tmp/*.md");
+        assertTrue(ignoresFile(rules, "tmp/a.md"));
+        assertTrue(ignoresFile(rules, "pages/sub/tmp/a.md"));
+        assertFalse(ignoresFile(rules, "tmp/sub/a.md"));
+        assertFalse(ignoresFile(rules, "pages/tmp.md"));
+    }
+
+    @Test
+    public void singleStarDoesNotCrossSlash() {
+        IgnoreRules rules = excluding("pages/*.md");
+        assertTrue(ignoresFile(rules, "pages/a.md"));
+        assertFalse(ignoresFile(rules, "pages/sub/a.md"));
+    }
+
+    @Test
+    public void characterSets() {
+        IgnoreRules rules = excluding("draft[0-9].md", "[!a]*.org", "v?.md");
+        assertTrue(ignoresFile(rules, "pages/draft1.md"));
+        assertFalse(ignoresFile(rules, "pages/draftx.md"));
+        assertTrue(ignoresFile(rules, "pages/b.org"));
+        assertFalse(ignoresFile(rules, "pages/a.org"));
+        assertTrue(ignoresFile(rules, "v1.md"));
+        assertFalse(ignoresFile(rules, "v10.md"));
+    }
+
+    @Test
+    public void leadingSlashAnchorsToRoot() {
+        IgnoreRules anchored = excluding("/assets/", "/todo.md");
+        assertTrue(ignoresDirectory(anchored, "assets"));
+        assertFalse(ignoresDirectory(anchored, "pages/assets"));
+        assertTrue(ignoresFile(anchored, "todo.md"));
+        assertFalse(ignoresFile(anchored, "pages/todo.md"));
+
+        IgnoreRules unanchored = excluding("assets/");
+        assertTrue(ignoresDirectory(unanchored, "assets"));
+        assertTrue(ignoresDirectory(unanchored, "pages/assets"));
+    }
+
+    @Test
+    public void trailingDoubleStarPrunesDirectory() {
+        IgnoreRules rules = excluding("export/**");
+        assertTrue(ignoresDirectory(rules, "export"));
+        assertTrue(ignoresFile(rules, "export/a.md"));
+        assertFalse(ignoresDirectory(rules, "pages/export"));
+        assertFalse(ignoresDirectory(rules, "exports"));
+    }
+
+    @Test
+    public void includesRestrictFiles() {
+        List<String> includes = Collections.singletonList("pages/**.md");
+        IgnoreRules rules = new IgnoreRules(includes,
+                Collections.<String>emptyList(), Collections.singletonList("md"));
+        assertFalse(ignoresFile(rules, "pages/a.md"));
+        assertFalse(ignoresFile(rules, "pages/sub/a.md"));
+        assertTrue(ignoresFile(rules, "journals/a.md"));
+        // Directories are still visited to find included files.
+        assertFalse(ignoresDirectory(rules, "journals"));
+    }
+
+    @Test
+    public void readContentByExtension() {
+        IgnoreRules rules = IgnoreRules.DEFAULT;
+        assertTrue(rules.shouldReadContent("a.MD"));
+        assertTrue(rules.shouldReadContent("config.edn"));
+        assertFalse(rules.shouldReadContent(".hidden.md"));
+        assertFalse(rules.shouldReadContent("noext"));
+        assertFalse(rules.shouldReadContent("trailing."));
+        assertFalse(rules.shouldReadContent("image.png"));
+    }
+
+    @Test
+    public void equalRulesFromTheSameOptions() {
+        assertTrue(excluding("bak/", "*.tmp").equals(excluding("bak/", "*.tmp")));
+        assertFalse(excluding("bak/", "*.tmp").equals(excluding("bak/")));
+        assertFalse(excluding("bak/").equals(IgnoreRules.DEFAULT));
+        // Extensions are compared as normalized.
+        assertTrue(new IgnoreRules(Collections.<String>emptyList(),
+                Collections.<String>emptyList(), Arrays.asList(".MD"))
+                .equals(excluding()));
+    }
+}